@@ -0,0 +1,74 @@
+import benchmarks.Crystal;
+
+/**
+ * A CrystalModel seen through the interface of the benchmarks. It lives in the default package
+ * so that it can reach the package-private parts of the model.
+ */
+public class BenchmarkCrystal implements Crystal {
+
+    private final CrystalModel crystalModel;
+    private final Lattice lattice;
+    private final Ion ion;
+    private final int escapeCircleRadius;
+
+    /**
+     * Creates a seeded model.
+     * @param size The size of the bath.
+     * @param extremeMode Whether the model runs in extreme mode.
+     * @param seed The seed of the model and of the ion dropped by dropNewIon().
+     */
+    public BenchmarkCrystal(int size, boolean extremeMode, long seed) {
+        crystalModel = new CrystalModel(size, seed);
+        if (!extremeMode)
+            crystalModel.toggleExtremeMode();
+        lattice = crystalModel.getLattice();
+        ion = new Ion(new SplitMixRandom(seed));
+        escapeCircleRadius = crystalModel.getEscapeCircleRadius();
+    }
+
+    @Override
+    public boolean crystallizeOneIon() {
+        return crystalModel.crystallizeOneIon();
+    }
+
+    @Override
+    public boolean runSomeSteps(int steps) {
+        return crystalModel.runSomeSteps(steps);
+    }
+
+    @Override
+    public boolean anyNeighbours(int x, int y) {
+        return lattice.anyNeighbours(x + escapeCircleRadius + 4, escapeCircleRadius - y + 4);
+    }
+
+    @Override
+    public boolean getModelValue(int x, int y) {
+        return crystalModel.getModelValue(x, y);
+    }
+
+    @Override
+    public int dropNewIon() {
+        crystalModel.dropNewIon(ion);
+        return ion.x ^ ion.y;
+    }
+
+    @Override
+    public String render() {
+        return crystalModel.toString();
+    }
+
+    @Override
+    public int getEscapeCircleRadius() {
+        return escapeCircleRadius;
+    }
+
+    @Override
+    public int getCurrentRadius() {
+        return crystalModel.getCurrentRadius();
+    }
+
+    @Override
+    public void reset() {
+        crystalModel.reset();
+    }
+}
@@ -0,0 +1,41 @@
+import benchmarks.View;
+
+/**
+ * A CrystalView seen through the interface of the benchmarks, see BenchmarkCrystal. The view is
+ * never shown, its image is drawn offscreen.
+ */
+public class BenchmarkView implements View {
+
+    private final CrystalView crystalView;
+    private final AgeMap ages; // null unless the sticks are coloured by age
+    private long order = 0;
+
+    /**
+     * Creates the view.
+     * @param size The size of the image.
+     * @param ages "true" to colour the sticks by age.
+     */
+    public BenchmarkView(int size, boolean ages) {
+        crystalView = new CrystalView(size);
+        this.ages = ages ? new AgeMap(size) : null;
+        if (ages)
+            View.onSwingThread(() -> crystalView.setAgeMap(this.ages));
+    }
+
+    @Override
+    public void drawSticks(int[] xs, int[] ys, int count) {
+        if (ages != null) {
+            // as the model does before it hands the sticks to the view
+            for (int i = 0; i < count; i++) {
+                ages.set(xs[i], ys[i], ++order);
+            }
+        }
+        crystalView.updateImage(xs, ys, count);
+        View.onSwingThread(crystalView::drawFrame);
+    }
+
+    @Override
+    public void resetImage() {
+        View.onSwingThread(crystalView::resetImage);
+    }
+}
@@ -0,0 +1,55 @@
+package benchmarks;
+
+/**
+ * The parts of a CrystalModel that the benchmarks measure. JMH refuses benchmarks in the default
+ * package, and a class in a package cannot name the classes of the default package, so the benchmarks
+ * reach the model through this interface, which BenchmarkCrystal in the default package implements.
+ * The calls are monomorphic, so the JIT inlines them like direct calls.
+ */
+public interface Crystal {
+
+    /**
+     * Creates a model through BenchmarkCrystal.
+     * @param size The size of the bath.
+     * @param extremeMode Whether the model runs in extreme mode.
+     * @param seed The seed of the model, so every run walks the same ions.
+     * @return The model.
+     */
+    static Crystal create(int size, boolean extremeMode, long seed) {
+        try {
+            return (Crystal) Class.forName("BenchmarkCrystal")
+                    .getConstructor(int.class, boolean.class, long.class)
+                    .newInstance(size, extremeMode, seed);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkCrystal is missing from the class path!", e);
+        }
+    }
+
+    boolean crystallizeOneIon();
+
+    boolean runSomeSteps(int steps);
+
+    /**
+     * Checks the neighbours of a cell through the lattice of the model, like the walk does.
+     * @param x The x-coordinate in bath-coordinates.
+     * @param y The y-coordinate in bath-coordinates.
+     * @return "true" if a neighbour has crystallized.
+     */
+    boolean anyNeighbours(int x, int y);
+
+    boolean getModelValue(int x, int y);
+
+    /**
+     * Drops the ion of the benchmark on the start circle.
+     * @return The position of the ion, as x ^ y.
+     */
+    int dropNewIon();
+
+    String render();
+
+    int getEscapeCircleRadius();
+
+    int getCurrentRadius();
+
+    void reset();
+}
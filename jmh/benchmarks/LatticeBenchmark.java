@@ -0,0 +1,81 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The lookups of the walk in isolation: anyNeighbours() and getModelValue() on a grown crystal, at
+ * positions spread over the crystal and its surroundings, and dropNewIon().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class LatticeBenchmark {
+
+    private static final int POSITIONS = 1024;
+    private static final int IONS = 2000;
+
+    @Param({"400", "2000"})
+    public int size;
+
+    private Crystal crystal;
+    private final int[] xs = new int[POSITIONS];
+    private final int[] ys = new int[POSITIONS];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        crystal = Crystal.create(size, true, WalkBenchmark.SEED);
+        crystal.runSomeSteps(IONS);
+
+        SplittableRandom random = new SplittableRandom(WalkBenchmark.SEED);
+        int radius = crystal.getCurrentRadius();
+        for (int i = 0; i < POSITIONS; i++) {
+            xs[i] = random.nextInt(-radius, radius + 1);
+            ys[i] = random.nextInt(-radius, radius + 1);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public int anyNeighbours() {
+        int found = 0;
+        for (int i = 0; i < POSITIONS; i++) {
+            if (crystal.anyNeighbours(xs[i], ys[i]))
+                found++;
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSITIONS)
+    public int getModelValue() {
+        int found = 0;
+        for (int i = 0; i < POSITIONS; i++) {
+            if (crystal.getModelValue(xs[i], ys[i]))
+                found++;
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int dropNewIon() {
+        return crystal.dropNewIon();
+    }
+}
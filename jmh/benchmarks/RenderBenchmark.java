@@ -0,0 +1,80 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The output of a crystal: CrystalModel.toString() of a grown crystal, and drawing sticks into and
+ * clearing the offscreen image of a CrystalView, red and green or coloured by age from an AgeMap.
+ * The sticks are a random walk over the image, so they are close to each other like the sticks of a
+ * real growth.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBenchmark {
+
+    private static final int STICKS = 4096;
+    private static final int IONS = 2000;
+
+    @Param({"400", "1600"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean ages;
+
+    private Crystal crystal;
+    private View view;
+    private final int[] xs = new int[STICKS];
+    private final int[] ys = new int[STICKS];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        crystal = Crystal.create(size, true, WalkBenchmark.SEED);
+        crystal.runSomeSteps(IONS);
+        view = View.create(size, ages);
+
+        SplittableRandom random = new SplittableRandom(WalkBenchmark.SEED);
+        int x = size / 2;
+        int y = size / 2;
+        for (int i = 0; i < STICKS; i++) {
+            x = Math.max(0, Math.min(size - 1, x + random.nextInt(-8, 9)));
+            y = Math.max(0, Math.min(size - 1, y + random.nextInt(-8, 9)));
+            xs[i] = x;
+            ys[i] = y;
+        }
+    }
+
+    @Benchmark
+    public String toStringOfModel() {
+        return crystal.render();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STICKS)
+    public void updateImage() {
+        view.drawSticks(xs, ys, STICKS);
+    }
+
+    @Benchmark
+    public void resetImage() {
+        view.resetImage();
+    }
+}
@@ -0,0 +1,31 @@
+package benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The main class of benchmarks.jar. It takes the usual JMH options, but unless told otherwise writes
+ * the results as JSON to jmh-result.json, so that runs of different versions can be compared.
+ */
+public class RunBenchmarks {
+
+    /**
+     * Runs the benchmarks.
+     * @param args JMH options, e.g. a regular expression for the benchmarks to run or -p size=400.
+     * @throws Exception If the options are wrong or a benchmark fails.
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+
+        if (!commandLine.getResultFormat().hasValue())
+            options.resultFormat(ResultFormatType.JSON);
+        if (!commandLine.getResult().hasValue())
+            options.result("jmh-result.json");
+
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,48 @@
+package benchmarks;
+
+import javax.swing.SwingUtilities;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * The parts of a CrystalView that the benchmarks measure, implemented by BenchmarkView in the default
+ * package, see {@link Crystal}. The view only draws on the Swing thread, so every call that touches the
+ * image is made there and waited for.
+ */
+public interface View {
+
+    /**
+     * Creates an offscreen view through BenchmarkView.
+     * @param size The size of the image.
+     * @param ages "true" to colour the sticks by age from an AgeMap, which the view then writes like a model would.
+     * @return The view.
+     */
+    static View create(int size, boolean ages) {
+        try {
+            return (View) Class.forName("BenchmarkView").getConstructor(int.class, boolean.class).newInstance(size, ages);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkView is missing from the class path!", e);
+        }
+    }
+
+    /**
+     * Queues the sticks and draws them into the image.
+     * @param xs The x-coordinates (in image coordinates) of the sticks.
+     * @param ys The y-coordinates (in image coordinates) of the sticks.
+     * @param count The number of sticks.
+     */
+    void drawSticks(int[] xs, int[] ys, int count);
+
+    void resetImage();
+
+    /**
+     * Runs a task on the Swing thread and waits for it.
+     * @param task The task.
+     */
+    static void onSwingThread(Runnable task) {
+        try {
+            SwingUtilities.invokeAndWait(task);
+        } catch (InterruptedException | InvocationTargetException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
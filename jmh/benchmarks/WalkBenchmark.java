@@ -0,0 +1,62 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The growth of a crystal: one ion at a time with crystallizeOneIon() and in batches with runSomeSteps().
+ * The crystal keeps growing through the iterations and starts over when it is complete, so the time is
+ * an average over whole growths. The model is seeded, so every run grows the same crystals.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class WalkBenchmark {
+
+    static final long SEED = 20170131L;
+    private static final int STEPS = 100;
+
+    @Param({"200", "400", "800"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean extremeMode;
+
+    private Crystal crystal;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        crystal = Crystal.create(size, extremeMode, SEED);
+    }
+
+    @Benchmark
+    public boolean crystallizeOneIon() {
+        boolean goOn = crystal.crystallizeOneIon();
+        if (!goOn)
+            crystal.reset();
+        return goOn;
+    }
+
+    @Benchmark
+    public boolean runSomeSteps() {
+        boolean goOn = crystal.runSomeSteps(STEPS);
+        if (!goOn)
+            crystal.reset();
+        return goOn;
+    }
+}
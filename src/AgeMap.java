@@ -0,0 +1,163 @@
+import java.util.Arrays;
+
+/**
+ * The age of every crystallized cell, i.e. when it crystallized, quantised to 16 bits. The ages
+ * are stored in tiles of 64*64 shorts that are only allocated where the crystal is, so the map
+ * costs 2 bytes per cell near the crystal and nothing elsewhere.
+ * <p>
+ * The age of a cell is its order (the particle count when it crystallized) shifted right by
+ * getShift(), plus one, so 0 means that the cell has no age. The shift starts at 0 and grows by
+ * one, halving every age in the map, whenever the newest age would not fit in 16 bits, so the
+ * ages always use between half and all of the range.
+ * <p>
+ * The cells are indexed like the pixels given to {@link CrystalView#updateImage(int, int)}: the
+ * bath-coordinates x and y plus escapeCircleRadius + 4, without flipping y. A CrystalModel writes
+ * the map from its growth, see {@link CrystalModel#setAgeMap(AgeMap)}, and a CrystalView reads it
+ * to colour the crystal by age, see {@link CrystalView#setAgeMap(AgeMap)}.
+ * <p>
+ * The map is written by one thread at a time (the model writes it while holding its own lock). It
+ * may be read by another thread at the same time; a reader then sees an age as of a moment ago,
+ * or 0 for a cell whose tile was allocated just now.
+ */
+public class AgeMap {
+
+    private static final int TILE_SHIFT = 6;
+    private static final int TILE_MASK = (1 << TILE_SHIFT) - 1;
+    static final int MAX_AGE = 0xFFFF;
+
+    private final int size;
+    private final int tilesPerRow;
+    private final short[][] tiles; // null tiles have no ages
+
+    private volatile int shift = 0;
+    private volatile int maxAge = 0;
+
+    /**
+     * Creates an empty map for a bath.
+     * @param size The width and height of the bath, as for the CrystalModel and CrystalView.
+     */
+    public AgeMap(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size cannot be negative!");
+        }
+        this.size = size;
+        this.tilesPerRow = (size >> TILE_SHIFT) + 1;
+        this.tiles = new short[tilesPerRow * tilesPerRow][];
+    }
+
+    /**
+     * Getter for the width and height of the map.
+     * @return The size.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Getter for the number of bits the orders are shifted right by; it changes when the ages are halved.
+     * @return The shift.
+     */
+    public int getShift() {
+        return shift;
+    }
+
+    /**
+     * Getter for the newest age in the map.
+     * @return The largest age, 0 if the map is empty.
+     */
+    public int getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Reads the age of a cell.
+     * @param x The column of the cell.
+     * @param y The row of the cell.
+     * @return The age, 1 to 65535, or 0 if the cell has no age or is outside the map.
+     */
+    public int get(int x, int y) {
+        if (x < 0 || y < 0 || x >= size || y >= size)
+            return 0;
+        short[] tile = tiles[(y >> TILE_SHIFT) * tilesPerRow + (x >> TILE_SHIFT)];
+        return tile == null ? 0 : tile[((y & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK)] & 0xFFFF;
+    }
+
+    /**
+     * Records when a cell crystallized.
+     * @param x The column of the cell.
+     * @param y The row of the cell.
+     * @param order The order of the cell, counted from 1 for the first cell of the crystal.
+     */
+    void set(int x, int y, long order) {
+        if (x < 0 || y < 0 || x >= size || y >= size)
+            return;
+        while (((order >>> shift) + 1) > MAX_AGE) {
+            halve();
+        }
+        int age = (int) (order >>> shift) + 1;
+
+        int t = (y >> TILE_SHIFT) * tilesPerRow + (x >> TILE_SHIFT);
+        short[] tile = tiles[t];
+        if (tile == null) {
+            tile = new short[1 << (2 * TILE_SHIFT)];
+            tiles[t] = tile;
+        }
+        tile[((y & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK)] = (short) age;
+        if (age > maxAge)
+            maxAge = age;
+    }
+
+    /**
+     * Forgets all ages.
+     */
+    void clear() {
+        Arrays.fill(tiles, null);
+        shift = 0;
+        maxAge = 0;
+    }
+
+    /**
+     * Halves every age in the map and increases the shift, so that twice as many orders fit.
+     * Ages stay at least 1, so a cell never loses its age.
+     */
+    private void halve() {
+        for (short[] tile : tiles) {
+            if (tile == null)
+                continue;
+            for (int i = 0; i < tile.length; i++) {
+                int age = tile[i] & 0xFFFF;
+                if (age > 0)
+                    tile[i] = (short) (((age - 1) >>> 1) + 1);
+            }
+        }
+        maxAge = ((maxAge - 1) >>> 1) + 1;
+        shift++;
+    }
+
+    /**
+     * Receives the cells of the map that have an age, see {@link AgeMap#forEach(AgeVisitor)}.
+     */
+    interface AgeVisitor {
+        void visit(int x, int y, int age);
+    }
+
+    /**
+     * Visits every cell that has an age. Only the allocated tiles are read, so this takes a time
+     * proportional to the area near the crystal rather than to size*size.
+     * @param visitor The visitor.
+     */
+    void forEach(AgeVisitor visitor) {
+        for (int t = 0; t < tiles.length; t++) {
+            short[] tile = tiles[t];
+            if (tile == null)
+                continue;
+            int x0 = (t % tilesPerRow) << TILE_SHIFT;
+            int y0 = (t / tilesPerRow) << TILE_SHIFT;
+            for (int i = 0; i < tile.length; i++) {
+                int age = tile[i] & 0xFFFF;
+                if (age > 0)
+                    visitor.visit(x0 + (i & TILE_MASK), y0 + (i >> TILE_SHIFT), age);
+            }
+        }
+    }
+}
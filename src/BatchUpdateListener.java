@@ -0,0 +1,22 @@
+/**
+ * A listener that is told about crystallized ions in batches instead of one at a time. The
+ * positions are delivered as primitive arrays, so the listener never has to read them back
+ * from a model that may already have moved on.
+ */
+public interface BatchUpdateListener {
+
+    /**
+     * Called with a batch of crystallized ions, in the order they crystallized. The arrays are
+     * reused by the model for the next batch, so a listener that keeps the data must copy it.
+     * @param xs The x-coordinates (in bath-coordinates) of the ions.
+     * @param ys The y-coordinates (in bath-coordinates) of the ions.
+     * @param order The stick order of each ion, i.e. the particle count of the crystal right after it crystallized.
+     * @param count The number of ions in the batch, the arrays may be longer.
+     */
+    void update(int[] xs, int[] ys, long[] order, int count);
+
+    /**
+     * Called when the model has been reset. Ions of a batch that had not been delivered are dropped.
+     */
+    void reset();
+}
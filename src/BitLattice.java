@@ -0,0 +1,100 @@
+import java.util.Arrays;
+
+/**
+ * A Lattice that packs the cells as single bits into a long[], row by row.
+ * <p>
+ * Every row is padded with at least one unused bit at the end and the whole lattice with
+ * one unused row above and below, so the neighbour test never has to check its bounds
+ * and the padding always reads as "not crystallized".
+ */
+public class BitLattice implements Lattice {
+
+    private final int size;
+    private final int wordsPerRow;
+    private final long[] bits;
+
+    /**
+     * Creates an empty lattice of size*size cells.
+     * @param size The width and height of the lattice.
+     */
+    public BitLattice(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size cannot be negative!");
+        }
+        this.size = size;
+        this.wordsPerRow = (size >>> 6) + 1;
+        this.bits = new long[(size + 2) * wordsPerRow];
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Lattice emptyCopy() {
+        return new BitLattice(size);
+    }
+
+    @Override
+    public boolean get(int col, int row) {
+        return (bits[wordIndex(col, row)] & (1L << col)) != 0;
+    }
+
+    @Override
+    public void set(int col, int row) {
+        bits[wordIndex(col, row)] |= 1L << col;
+    }
+
+    @Override
+    public boolean trySet(int col, int row) {
+        int i = wordIndex(col, row);
+        long mask = 1L << col;
+
+        if ((bits[i] & mask) != 0)
+            return false;
+
+        bits[i] |= mask;
+        return true;
+    }
+
+    /**
+     * The cells above and below are found in the same bit of the neighbouring rows, and the
+     * cells to the left and right in the same word unless the cell is at a word boundary.
+     */
+    @Override
+    public boolean anyNeighbours(int col, int row) {
+        int i = wordIndex(col, row);
+        long mask = 1L << col;
+
+        if (((bits[i - wordsPerRow] | bits[i + wordsPerRow]) & mask) != 0) return true;
+        if ((bits[i] & ((mask << 1) | (mask >>> 1))) != 0) return true;
+
+        int bit = col & 63;
+        if (bit == 0) return bits[i - 1] < 0; // bit 63 of the word to the left
+        if (bit == 63) return (bits[i + 1] & 1L) != 0;
+
+        return false;
+    }
+
+    @Override
+    public void getRow(int row, long[] words) {
+        System.arraycopy(bits, (row + 1) * wordsPerRow, words, 0, (size + 63) >>> 6);
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(bits, 0L);
+    }
+
+    /**
+     * Calculates the index of the word holding the cell at col,row, taking the padding row
+     * at the top into account. The bit within the word is col & 63.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return The index in the bits array.
+     */
+    private int wordIndex(int col, int row) {
+        return (row + 1) * wordsPerRow + (col >>> 6);
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bit-packed Lattice, laid out exactly like {@link BitLattice}, that may be shared between
+ * threads. Cells are crystallized with a compare-and-set on the word that holds them, so two
+ * threads can never both succeed in crystallizing the same cell and no update is ever lost.
+ */
+public class ConcurrentBitLattice implements Lattice {
+
+    private final int size;
+    private final int wordsPerRow;
+    private final AtomicLongArray bits;
+
+    /**
+     * Creates an empty lattice of size*size cells.
+     * @param size The width and height of the lattice.
+     */
+    public ConcurrentBitLattice(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size cannot be negative!");
+        }
+        this.size = size;
+        this.wordsPerRow = (size >>> 6) + 1;
+        this.bits = new AtomicLongArray((size + 2) * wordsPerRow);
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Lattice emptyCopy() {
+        return new ConcurrentBitLattice(size);
+    }
+
+    @Override
+    public boolean get(int col, int row) {
+        return (bits.get(wordIndex(col, row)) & (1L << col)) != 0;
+    }
+
+    @Override
+    public void set(int col, int row) {
+        trySet(col, row);
+    }
+
+    @Override
+    public boolean trySet(int col, int row) {
+        int i = wordIndex(col, row);
+        long mask = 1L << col;
+
+        long word;
+        do {
+            word = bits.get(i);
+            if ((word & mask) != 0)
+                return false;
+        } while (!bits.compareAndSet(i, word, word | mask));
+
+        return true;
+    }
+
+    @Override
+    public boolean anyNeighbours(int col, int row) {
+        int i = wordIndex(col, row);
+        long mask = 1L << col;
+
+        if (((bits.get(i - wordsPerRow) | bits.get(i + wordsPerRow)) & mask) != 0) return true;
+        if ((bits.get(i) & ((mask << 1) | (mask >>> 1))) != 0) return true;
+
+        int bit = col & 63;
+        if (bit == 0) return bits.get(i - 1) < 0; // bit 63 of the word to the left
+        if (bit == 63) return (bits.get(i + 1) & 1L) != 0;
+
+        return false;
+    }
+
+    /**
+     * Every word is read atomically, but the row as a whole may be changed while it is copied.
+     */
+    @Override
+    public void getRow(int row, long[] words) {
+        int first = wordIndex(0, row);
+        for (int i = 0; i < (size + 63) >>> 6; i++) {
+            words[i] = bits.get(first + i);
+        }
+    }
+
+    /**
+     * Clears the lattice. This is not atomic as a whole and must not run while other
+     * threads are crystallizing.
+     */
+    @Override
+    public void clear() {
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, 0L);
+        }
+    }
+
+    /**
+     * Calculates the index of the word holding the cell at col,row, see BitLattice.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return The index in the bits array.
+     */
+    private int wordIndex(int col, int row) {
+        return (row + 1) * wordsPerRow + (col >>> 6);
+    }
+}
@@ -1,3 +1,4 @@
+import javax.management.JMException;
 import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import java.awt.*;
@@ -16,13 +17,28 @@ public class CrystalControl extends JPanel implements Runnable {
     private JPanel buttonPanel;
     private JButton[] buttons;
     private JCheckBox jCheckBox;
+    private JCheckBox acceleratedCheckBox;
+    private JCheckBox reinjectCheckBox;
+    private JCheckBox adaptiveCheckBox;
 
     private Thread thread = null;
     private boolean threadOn = false;
     private boolean simulate = false;
-    private long sleepTime = 0;
+    private boolean resetRequested = false;
+    private boolean adaptiveToggleRequested = false; // two clicks before the thread gets to it cancel out
+    private double targetRate = 0; // ions per second, 0 means as fast as possible
     private boolean done = false;
 
+    // a batch of ions is sized to take about one frame, so pausing and resetting stay responsive
+    private static final long FRAME_BUDGET = 1_000_000_000L / 60;
+    private static final int MAX_STEPS = 1 << 20;
+
+    // ions are handed to the view in batches of at most this many, and at least once per frame
+    private static final int BATCH_SIZE = 256;
+    private static final long BATCH_DELAY = 1_000_000_000L / 60;
+    private final int[] viewXs = new int[BATCH_SIZE];
+    private final int[] viewYs = new int[BATCH_SIZE];
+
     /**
      * Constructor which takes only one value, the size of the JPanel.
      * It will create all the related objects and set the layout and size.
@@ -35,6 +51,16 @@ public class CrystalControl extends JPanel implements Runnable {
 
         crystalView = new CrystalView(size);
         crystalModel = new CrystalModel(size);
+        WalkMetrics metrics = new WalkMetrics(crystalModel);
+        crystalModel.setMetrics(metrics);
+        AgeMap ages = new AgeMap(size);
+        crystalModel.setAgeMap(ages);
+        crystalView.setAgeMap(ages);
+        try {
+            metrics.register("CrystalControl");
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
         buttonPanel = new JPanel();
 
         this.setLayout(new BorderLayout());
@@ -44,30 +70,91 @@ public class CrystalControl extends JPanel implements Runnable {
 
         addListeners();
         addButtons();
+        threadOn = true;
+
         thread = new Thread(this);
         thread.start();
 
-        threadOn = true;
-
         int escRad = crystalModel.getEscapeCircleRadius();
 
         crystalView.updateImage(crystalModel.getX() + escRad + 4, crystalModel.getY() + escRad + 4);
     }
 
     /**
-     * Running the separate thread for the crystallization with a short sleep between each
-     * iteration according to the set sleep-time (note, this is set by the user using
-     * the slider in the UI)
+     * Running the separate thread for the crystallization. The thread waits while the simulation is
+     * paused or done and is woken by the Start/Pause and Reset buttons and the adaptive radii checkbox. While running it crystallizes
+     * the ions in batches with runSomeSteps(), sized so that a batch takes about one frame, and waits
+     * between the batches so that the ions crystallize at the target rate set with the slider in the UI.
      */
     public void run() {
-        while(threadOn) {
-            if (shouldSimulate() && !done) {
-                if (!crystalModel.crystallizeOneIon()) done = true;
-                try {
-                    Thread.sleep(getSleepTime());
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        int steps = 1;
+        long next = System.nanoTime();
+
+        while (true) {
+            double rate;
+            synchronized (this) {
+                while (threadOn && !resetRequested && !adaptiveToggleRequested && (!simulate || done)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    next = System.nanoTime();
+                }
+                if (!threadOn) return;
+                if (resetRequested) {
+                    resetRequested = false;
+                    done = false;
+                    crystalModel.reset();
+                    continue;
+                }
+                if (adaptiveToggleRequested) {
+                    adaptiveToggleRequested = false;
+                    crystalModel.toggleAdaptiveRadii();
+                    continue;
                 }
+                rate = targetRate;
+            }
+
+            int batch = steps;
+            if (rate > 0) {
+                batch = (int) Math.max(1, Math.min(steps, rate * FRAME_BUDGET / 1e9));
+            }
+
+            long start = System.nanoTime();
+            boolean goOn = crystalModel.runSomeSteps(batch);
+            long elapsed = Math.max(1, System.nanoTime() - start);
+            crystalModel.flushUpdates();
+
+            // grow or shrink the batch towards one frame of work, by at most a factor of two at a time
+            double scale = Math.min(2.0, Math.max(0.5, (double) FRAME_BUDGET / elapsed));
+            steps = (int) Math.max(1, Math.min(MAX_STEPS, steps * scale));
+
+            synchronized (this) {
+                if (!goOn) done = true;
+                if (rate <= 0) {
+                    next = System.nanoTime();
+                    continue;
+                }
+                next = Math.max(next + (long) (batch * 1e9 / rate), start - FRAME_BUDGET);
+                waitUntil(next);
+            }
+        }
+    }
+
+    /**
+     * Waits until the given time, or until the simulation is paused, reset, its rate is changed or the adaptive radii are toggled.
+     * Must be called while holding the lock of the controller.
+     * @param deadline The time to wait for, as given by System.nanoTime().
+     */
+    private void waitUntil(long deadline) {
+        double rate = targetRate;
+        long left;
+        while (simulate && !resetRequested && !adaptiveToggleRequested && targetRate == rate && (left = deadline - System.nanoTime()) > 0) {
+            try {
+                wait(left / 1_000_000, (int) (left % 1_000_000));
+            } catch (InterruptedException e) {
+                return;
             }
         }
     }
@@ -75,60 +162,76 @@ public class CrystalControl extends JPanel implements Runnable {
     /**
      * Adding the customized listeners for the crystalModel. This is set so that the CrystalModel can notify
      * the Controller without a direct reference to the controller. This helps reduce clustering in the code
-     * and makes the communication between the objects more clear.
+     * and makes the communication between the objects more clear. The ions are received in batches, so
+     * the view is called once per batch instead of once per ion.
      */
     private void addListeners() {
-        crystalModel.setUpdateListener(new ModelUpdateListener() {
+        crystalModel.setBatchUpdateListener(new BatchUpdateListener() {
             @Override
-            public void update() {
+            public void update(int[] xs, int[] ys, long[] order, int count) {
                 int escRad = crystalModel.getEscapeCircleRadius();
 
-                crystalView.updateImage(crystalModel.getX() + escRad + 4, crystalModel.getY() + escRad + 4);
+                for (int i = 0; i < count; i++) {
+                    viewXs[i] = xs[i] + escRad + 4;
+                    viewYs[i] = ys[i] + escRad + 4;
+                }
+                crystalView.updateImage(viewXs, viewYs, count);
             }
 
             @Override
             public void reset() {
-                done = false;
                 int escRad = crystalModel.getEscapeCircleRadius();
                 crystalView.resetImage();
                 crystalView.updateImage(escRad + 4, escRad + 4);
             }
-        });
+        }, BATCH_SIZE, BATCH_DELAY);
     }
 
     /**
-     * Toggles the simulation on or off. Note, this method is set to synchronized for good practice since multiple
-     * threads are implemented, however this might be unnecessary since only one of the threads in the program
-     * calls this method in its current state.
+     * Toggles the simulation on or off and wakes the crystallizing-thread, which waits while the
+     * simulation is paused.
      */
     private synchronized void toggleSimulation() {
         simulate = !simulate;
+        notifyAll();
+    }
+
+    /**
+     * Asks the crystallizing-thread to reset the model. The reset is made by that thread between two
+     * batches, so it never runs at the same time as the crystallization.
+     */
+    private synchronized void requestReset() {
+        resetRequested = true;
+        notifyAll();
     }
 
     /**
-     * Getter for the simulate boolean. This is to check whether the other thread should simulate or not.
-     * This is added to prevent the crystallizing-thread from locking the simulate-variable.
-     * @return A boolean value for the variable simulate.
+     * Asks the crystallizing-thread to toggle the adaptive radii. Turning them on marks a guard band in the
+     * model, so like a reset it is made by that thread between two batches.
      */
-    private synchronized boolean shouldSimulate() {
-        return this.simulate;
+    private synchronized void requestAdaptiveToggle() {
+        adaptiveToggleRequested = !adaptiveToggleRequested;
+        notifyAll();
     }
 
     /**
-     * Returns the amount of milliseconds to sleep between each iteration. This is set to synchronized
-     * for the same reason as toggleSimulation().
-     * @return A long value of the sleepTime (milliseconds).
+     * Sets the target rate of the simulation and wakes the crystallizing-thread if it waits for the next batch.
+     * @param targetRate The number of ions to crystallize per second, 0 for as fast as possible.
      */
-    private synchronized long getSleepTime() {
-        return this.sleepTime;
+    private synchronized void setTargetRate(double targetRate) {
+        if (targetRate < 0) {
+            throw new IllegalArgumentException("The rate cannot be negative!");
+        }
+        this.targetRate = targetRate;
+        notifyAll();
     }
 
     /**
-     * Sets the sleepTime in milliseconds.
-     * @param sleepTime The sleeptime in milliseconds.
+     * Sets the target rate from a sleep time between each ion, as chosen with the speed slider.
+     * @param sleepTime The sleeptime in milliseconds, 0 for as fast as possible.
      */
-    private synchronized void setSleepTime(long sleepTime) {
-        this.sleepTime = sleepTime;
+    private void setSleepTime(double sleepTime) {
+        setTargetRate(sleepTime > 0 ? 1000 / sleepTime : 0);
     }
 
     /**
@@ -145,6 +248,24 @@ public class CrystalControl extends JPanel implements Runnable {
 
         jCheckBox.addActionListener(actionEvent -> crystalModel.toggleExtremeMode());
 
+        acceleratedCheckBox = new JCheckBox();
+        acceleratedCheckBox.setToolTipText("Accelerated Walk");
+        acceleratedCheckBox.setSelected(false);
+
+        acceleratedCheckBox.addActionListener(actionEvent -> crystalModel.toggleAcceleratedWalk());
+
+        reinjectCheckBox = new JCheckBox();
+        reinjectCheckBox.setToolTipText("Reinject Escaped Ions");
+        reinjectCheckBox.setSelected(false);
+
+        reinjectCheckBox.addActionListener(actionEvent -> crystalModel.toggleReinjection());
+
+        adaptiveCheckBox = new JCheckBox();
+        adaptiveCheckBox.setToolTipText("Adaptive Launch and Kill Radii");
+        adaptiveCheckBox.setSelected(false);
+
+        adaptiveCheckBox.addActionListener(actionEvent -> requestAdaptiveToggle());
+
         buttons[0].addActionListener(actionEvent -> toggleSimulation());
 
         /*
@@ -153,16 +274,17 @@ public class CrystalControl extends JPanel implements Runnable {
             setSleepTime(Long.parseLong(response));
         });
         */
-        buttons[2].addActionListener(actionEvent -> {
-            crystalModel.reset();
-        });
+        buttons[2].addActionListener(actionEvent -> requestReset());
         this.buttonPanel.add(buttons[0]);
         this.buttonPanel.add(buttons[2]);
         this.buttonPanel.add(jCheckBox);
+        this.buttonPanel.add(acceleratedCheckBox);
+        this.buttonPanel.add(reinjectCheckBox);
+        this.buttonPanel.add(adaptiveCheckBox);
 
         JSlider speedPicker = new JSlider(0,30,0);
         speedPicker.setToolTipText("Change Speed");
-        speedPicker.addChangeListener((ChangeEvent e) -> setSleepTime((long)Math.pow(10,((double)((JSlider)(e.getSource())).getValue())/10)-1)); //Kan vara lite overkill med exponentialfunktionen, om så önskas kan detta bytas mot endast getvalue
+        speedPicker.addChangeListener((ChangeEvent e) -> setSleepTime(Math.pow(10,((double)((JSlider)(e.getSource())).getValue())/10)-1)); //Kan vara lite overkill med exponentialfunktionen, om så önskas kan detta bytas mot endast getvalue
         buttonPanel.add(speedPicker);
     }
 }
@@ -0,0 +1,273 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a crystal as ASCII art, as a PBM or PGM image or as a PNG image. The lattice is read a
+ * row of packed words at a time and every row is written as soon as it is encoded, so the memory
+ * used is a few rows whatever the size of the crystal, unlike {@link CrystalModel#toString()}.
+ * <p>
+ * The whole lattice is written, size*size cells, with the row of the highest y at the top. To write
+ * to a channel, wrap it with java.nio.channels.Channels.newOutputStream() or newWriter().
+ */
+public class CrystalExporter {
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int PNG_CHUNK = 1 << 16; // the largest IDAT chunk written
+
+    private final Lattice lattice;
+    private final int size;
+    private final int markCol; // the cell written as '#' in ASCII, or -1
+    private final int markRow;
+    private final long[] words;
+
+    /**
+     * Creates an exporter for the crystal of a model. The last crystallized ion is marked in ASCII.
+     * @param crystalModel The model, it should not grow while it is written.
+     */
+    public CrystalExporter(CrystalModel crystalModel) {
+        this(crystalModel.getLattice(), crystalModel.getX() + crystalModel.getEscapeCircleRadius() + 4,
+                crystalModel.getEscapeCircleRadius() - crystalModel.getY() + 4);
+    }
+
+    /**
+     * Creates an exporter for a lattice, e.g. a MappedLattice opened from a checkpoint.
+     * @param lattice The lattice.
+     */
+    public CrystalExporter(Lattice lattice) {
+        this(lattice, -1, -1);
+    }
+
+    private CrystalExporter(Lattice lattice, int markCol, int markRow) {
+        this.lattice = lattice;
+        this.size = lattice.getSize();
+        this.markCol = markCol;
+        this.markRow = markRow;
+        this.words = new long[(size + 63) >>> 6];
+    }
+
+    /**
+     * Writes the crystal as ASCII art in the style of CrystalModel.toString(): a frame of '-' and '|',
+     * '*' for a crystallized cell and '#' for the last crystallized ion.
+     * @param out Where the text is written, it is flushed but not closed.
+     * @throws IOException If the text cannot be written.
+     */
+    public void writeAscii(Writer out) throws IOException {
+        char[] line = new char[size + 3];
+        Arrays.fill(line, 0, size + 2, '-');
+        line[size + 2] = '\n';
+        out.write(line);
+
+        line[0] = '|';
+        line[size + 1] = '|';
+        for (int row = 0; row < size; row++) {
+            lattice.getRow(row, words);
+            for (int col = 0; col < size; col++) {
+                boolean set = (words[col >>> 6] & (1L << col)) != 0;
+                line[col + 1] = !set ? ' ' : (col == markCol && row == markRow) ? '#' : '*';
+            }
+            out.write(line);
+        }
+
+        Arrays.fill(line, 0, size + 2, '-');
+        out.write(line);
+        out.flush();
+    }
+
+    /**
+     * Writes the crystal as a binary PBM (P4) image, where the crystallized cells are black.
+     * @param out Where the image is written, it is flushed but not closed.
+     * @throws IOException If the image cannot be written.
+     */
+    public void writePbm(OutputStream out) throws IOException {
+        out.write(("P4\n" + size + " " + size + "\n").getBytes(StandardCharsets.US_ASCII));
+
+        byte[] line = new byte[(size + 7) >>> 3];
+        for (int row = 0; row < size; row++) {
+            packRow(row, line, 0);
+            out.write(line);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the crystal as a binary PGM (P5) image with 8 bits per pixel, where the crystallized
+     * cells are white on black like in the CrystalView.
+     * @param out Where the image is written, it is flushed but not closed.
+     * @throws IOException If the image cannot be written.
+     */
+    public void writePgm(OutputStream out) throws IOException {
+        out.write(("P5\n" + size + " " + size + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+
+        byte[] line = new byte[size];
+        for (int row = 0; row < size; row++) {
+            lattice.getRow(row, words);
+            for (int col = 0; col < size; col++) {
+                line[col] = (words[col >>> 6] & (1L << col)) != 0 ? (byte) 255 : 0;
+            }
+            out.write(line);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the crystal as a 1-bit grayscale PNG image, where the crystallized cells are white on
+     * black. The rows are compressed as they are read and written in IDAT chunks of at most 64 kB.
+     * @param out Where the image is written, it is flushed but not closed.
+     * @throws IOException If the image cannot be written.
+     */
+    public void writePng(OutputStream out) throws IOException {
+        out.write(PNG_SIGNATURE);
+
+        byte[] header = new byte[13];
+        putInt(header, 0, size); // width
+        putInt(header, 4, size); // height
+        header[8] = 1; // bit depth
+        header[9] = 0; // grayscale
+        header[10] = 0; // deflate
+        header[11] = 0; // adaptive filtering
+        header[12] = 0; // no interlace
+        writeChunk(out, "IHDR", header, header.length);
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            OutputStream idat = new OutputStream() {
+                private final byte[] chunk = new byte[PNG_CHUNK];
+                private int length = 0;
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    while (len > 0) {
+                        int n = Math.min(len, chunk.length - length);
+                        System.arraycopy(b, off, chunk, length, n);
+                        length += n;
+                        off += n;
+                        len -= n;
+                        if (length == chunk.length)
+                            flush();
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (length > 0)
+                        writeChunk(out, "IDAT", chunk, length);
+                    length = 0;
+                }
+            };
+
+            DeflaterOutputStream compressed = new DeflaterOutputStream(idat, deflater, 1 << 14);
+            byte[] line = new byte[1 + ((size + 7) >>> 3)]; // the filter type (none) and the pixels
+            for (int row = 0; row < size; row++) {
+                packRow(row, line, 1);
+                compressed.write(line);
+            }
+            compressed.finish();
+            idat.flush();
+        } finally {
+            deflater.end();
+        }
+
+        writeChunk(out, "IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    /**
+     * Packs a row of the lattice into bytes with the leftmost cell in the highest bit, as in PBM and PNG.
+     * @param row The row.
+     * @param line The array to write the bytes to.
+     * @param offset The index of the first byte of the row in line.
+     */
+    private void packRow(int row, byte[] line, int offset) {
+        lattice.getRow(row, words);
+        int bytes = (size + 7) >>> 3;
+        for (int i = 0; i < bytes; i++) {
+            int bits = (int) (words[i >>> 3] >>> ((i & 7) << 3)) & 0xFF;
+            line[offset + i] = (byte) (Integer.reverse(bits) >>> 24);
+        }
+    }
+
+    /**
+     * Writes a PNG chunk: its length, type, data and the CRC of the type and data.
+     * @param out Where the chunk is written.
+     * @param type The four letter type of the chunk.
+     * @param data The data of the chunk.
+     * @param length The number of bytes of data.
+     * @throws IOException If the chunk cannot be written.
+     */
+    private static void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, 0, length);
+
+        DataOutputStream chunk = new DataOutputStream(out);
+        chunk.writeInt(length);
+        chunk.write(name);
+        chunk.write(data, 0, length);
+        chunk.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Stores an int big-endian, as PNG wants it.
+     * @param b The array.
+     * @param offset The index of the first byte.
+     * @param value The value.
+     */
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Exports a crystal from a lattice file written by a MappedLattice, e.g. a checkpoint of a
+     * headless growth. The format is chosen from the extension of the output: .txt, .pbm, .pgm or .png.
+     * @param args The lattice file and the file to write.
+     * @throws IOException If a file cannot be read or written.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java CrystalExporter <lattice file> <out.txt|out.pbm|out.pgm|out.png>");
+            return;
+        }
+        CrystalExporter exporter = new CrystalExporter(new MappedLattice(new File(args[0])));
+        String name = args[1].toLowerCase();
+
+        if (!name.endsWith(".txt") && !name.endsWith(".pbm") && !name.endsWith(".pgm") && !name.endsWith(".png")) {
+            throw new IllegalArgumentException("Unknown format of " + args[1] + "!");
+        }
+
+        if (name.endsWith(".txt")) {
+            try (Writer out = new BufferedWriter(new FileWriter(args[1]), 1 << 16)) {
+                exporter.writeAscii(out);
+            }
+            return;
+        }
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]), 1 << 16)) {
+            if (name.endsWith(".pbm"))
+                exporter.writePbm(out);
+            else if (name.endsWith(".pgm"))
+                exporter.writePgm(out);
+            else
+                exporter.writePng(out);
+        }
+    }
+}
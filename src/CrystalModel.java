@@ -1,4 +1,5 @@
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * CrystalModel är en klass som representerar ett elektrolytbad som omges med en
@@ -10,40 +11,138 @@ public class CrystalModel {
 
     private ModelUpdateListener modelUpdateListener;
 
+    // the batch listener and the batch collected for it, guarded by the model itself
+    private BatchUpdateListener batchUpdateListener;
+    private long batchDelay; // nanoseconds, 0 means only full batches are delivered
+    private long batchStart;
+    private int batchCount = 0;
+    private int[] batchXs = new int[0];
+    private int[] batchYs = new int[0];
+    private long[] batchOrder = new long[0];
+
+    private StickLog stickLog; // every crystallized ion is appended to it, guarded by the model itself
+    private AgeMap ageMap; // the order of every crystallized cell is written to it, guarded by the model itself
+    private WalkMetrics metrics; // null unless the walk is measured
+
     private boolean extremeMode = true;
+    private boolean acceleratedWalk = false;
+    private boolean reinjectEscaped = false;
+    private volatile boolean adaptiveRadii = false;
+    private double launchFactor = 1.0; // the start circle in adaptive mode, relative to currentRadius
+    private double killFactor = 3.0; // the kill circle in adaptive mode, relative to currentRadius
+
+    private static final int MIN_JUMP_RADIUS = 4; // closer to the cluster than this the ion takes unit steps
+    private static final double KILL_RADIUS_GROWTH = 1.25; // the least factor the kill circle grows by
 
     // variabler
     private int escapeCircleRadius; // radius of escape circle
     private int startCircleRadius; // radius of start circle
 
-    private int currentRadius = 5;
+    // the radius of the crystal (plus a margin), only ever grows between resets and is
+    // shared with any ParallelGrowthEngine working on the model
+    private final AtomicInteger currentRadius = new AtomicInteger(5);
+    // the radius of the kill circle in adaptive mode, 0 until a guard band has been marked for it
+    private volatile int killCircleRadius = 0;
     // the bath
 
-    private boolean[][] modelRep; // (model Representation) is the bolean matxix
+    private Lattice modelRep; // (model Representation) is the bit-packed lattice
+    private DistanceMap distanceMap; // coarse distance to the cluster, used by the accelerated walk
+
+    // the cells where a walking ion has to stop and look around: the crystallized cells, the
+    // frontier of empty cells next to them, and a guard band just outside the escape circle
+    private Lattice stopRep;
 
-    // position of walking ion in our coordinate system, the bath,
+    private Ion ion = new Ion(new SplitMixRandom()); // the ion walked by crystallizeOneIon()
+
+    private final boolean seeded; // when seeded, every ion gets a random generator of its own from seed and ionCount
+    private final long seed;
+    private long ionCount = 0; // number of ions dropped since the last reset
+    private long walkSteps = 0; // number of moves of all ions walked by crystallizeOneIon() since the last reset
+    private final AtomicLong particleCount = new AtomicLong(1); // number of crystallized cells, including the first one
+    private final GrowthStatistics statistics = new GrowthStatistics(); // kept up to date by attach()
+
+    // position of the last crystallized ion in our coordinate system, the bath,
     // where 0,0 is in the middle
     private int x = 0;  // xBath
     private int y = 0;  // yBath
 
     private int size;
 
+    /**
+     * The ways a walk of one ion can end, see {@link CrystalModel#walk(Ion)} and
+     * {@link CrystalModel#crystallize(Ion)}.
+     */
+    enum Outcome {
+        STUCK,      // the ion has a crystallized neighbour, after crystallize() it has crystallized inside the start circle
+        ESCAPED,    // the ion reached the escape circle and was discarded
+        COMPLETE,   // the ion crystallized on or outside the start circle, the crystal is done
+        LOST        // the ion ended up on an already crystallized cell
+    }
+
     /**
      * Skapar en modell av kristallbadet (elektrolytbadet).
      * @param size Kristallbadets bredd
 
      */
     public CrystalModel(int size) {
+        this(size, null, false, 0);
+    }
+
+    /**
+     * Skapar en modell av kristallbadet där varje jons vandring bestäms av ett frö, så att
+     * samma frö alltid ger samma kristall.
+     * @param size Kristallbadets bredd
+     * @param seed Fröet som jonernas slumptalsgeneratorer härleds från
+     */
+    public CrystalModel(int size, long seed) {
+        this(size, null, true, seed);
+    }
+
+    /**
+     * Skapar en modell av kristallbadet som lagras i ett givet gitter, t.ex. en
+     * ConcurrentBitLattice när flera trådar ska växa kristallen samtidigt.
+     * @param modelRep Gittret som kristallen lagras i, dess storlek är kristallbadets bredd
+     */
+    public CrystalModel(Lattice modelRep) {
+        this(modelRep.getSize(), modelRep, false, 0);
+    }
+
+    /**
+     * Skapar en modell av kristallbadet som lagras i ett givet gitter och där varje jons
+     * vandring bestäms av ett frö.
+     * @param modelRep Gittret som kristallen lagras i, dess storlek är kristallbadets bredd
+     * @param seed Fröet som jonernas slumptalsgeneratorer härleds från
+     */
+    public CrystalModel(Lattice modelRep, long seed) {
+        this(modelRep.getSize(), modelRep, true, seed);
+    }
+
+    /**
+     * Skapar en modell av kristallbadet som lagras i en fil. Om filen har en checkpoint fortsätter
+     * modellen växten därifrån, med samma frö, annars börjar den om med en tom kristall.
+     * See {@link CrystalModel#checkpoint()}.
+     * @param modelRep Gittret i filen, dess storlek är kristallbadets bredd
+     */
+    public CrystalModel(MappedLattice modelRep) {
+        this(modelRep.getSize(), modelRep, modelRep.getHeader(MappedLattice.SEEDED) != 0,
+                modelRep.getHeader(MappedLattice.SEED));
+    }
+
+    private CrystalModel(int size, Lattice modelRep, boolean seeded, long seed) {
         this.size = size;
+        this.modelRep = modelRep;
+        this.seeded = seeded;
+        this.seed = seed;
         escapeCircleRadius = size / 2 - 4; //(-4 to awoid indexOutOfBounds)
         startCircleRadius = escapeCircleRadius - (int)(0.1 * escapeCircleRadius);
-        System.out.println(startCircleRadius);
-        System.out.println(escapeCircleRadius);
-        reset();
+        if (modelRep instanceof MappedLattice && ((MappedLattice) modelRep).getHeader(MappedLattice.PARTICLE_COUNT) > 0)
+            resume((MappedLattice) modelRep);
+        else
+            reset();
     }
 
     /**
-     * Getter for the x-coordinate (in bath-coordinates).
+     * Getter for the x-coordinate (in bath-coordinates) of the last crystallized ion.
      * @return An int value representing the x-coordinate.
      */
     public int getX() {
@@ -51,7 +150,7 @@ public class CrystalModel {
     }
 
     /**
-     * Getter for the y-coordinate (in bath-coordinates).
+     * Getter for the y-coordinate (in bath-coordinates) of the last crystallized ion.
      * @return An int value representing the y-coordinate.
      */
     public int getY() {
@@ -66,6 +165,120 @@ public class CrystalModel {
         return this.escapeCircleRadius;
     }
 
+    /**
+     * Sets a listener that is told about crystallized ions in batches. A batch is delivered when it
+     * holds batchSize ions or, if batchDelay is positive, when an ion crystallizes more than batchDelay
+     * nanoseconds after the first ion of the batch. Use {@link CrystalModel#flushUpdates()} to deliver
+     * a batch that is not full, e.g. when the growth is paused. Batches are delivered on the thread that
+     * crystallized the last ion of the batch, serialized with the calls to the ModelUpdateListener.
+     * @param batchUpdateListener The listener, or null to remove it.
+     * @param batchSize The largest number of ions in a batch.
+     * @param batchDelay The longest time in nanoseconds that an ion waits in a batch, or 0 for no limit.
+     */
+    public synchronized void setBatchUpdateListener(BatchUpdateListener batchUpdateListener, int batchSize, long batchDelay) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive!");
+        }
+        this.batchUpdateListener = batchUpdateListener;
+        this.batchDelay = batchDelay;
+        this.batchCount = 0;
+        this.batchXs = new int[batchSize];
+        this.batchYs = new int[batchSize];
+        this.batchOrder = new long[batchSize];
+    }
+
+    /**
+     * Sets a log that every crystallized ion, and every reset, is appended to, see {@link StickReplay}.
+     * The model does not close the log, the caller should do that after the growth.
+     * @param stickLog The log, or null to stop logging.
+     */
+    public synchronized void setStickLog(StickLog stickLog) {
+        if (stickLog != null && stickLog.getSize() != size) {
+            throw new IllegalArgumentException("The log is made for another size!");
+        }
+        this.stickLog = stickLog;
+    }
+
+    /**
+     * Sets a map that the age of every crystallized cell is written to, e.g. for a CrystalView to
+     * colour the crystal by age. The map is cleared at every reset. Cells that crystallized before
+     * the map was set, e.g. of a crystal resumed from a file, have no age in it.
+     * @param ageMap The map, or null to stop recording the ages.
+     */
+    public synchronized void setAgeMap(AgeMap ageMap) {
+        if (ageMap != null && ageMap.getSize() != size) {
+            throw new IllegalArgumentException("The age map is made for another size!");
+        }
+        this.ageMap = ageMap;
+        if (ageMap != null && particleCount.get() == 1)
+            ageMap.set(escapeCircleRadius + 4, escapeCircleRadius + 4, 1);
+    }
+
+    /**
+     * Sets the counters that every ion is counted in, see {@link WalkMetrics}. Without metrics the
+     * model does not count anything.
+     * @param metrics The metrics, or null to stop counting.
+     */
+    public void setMetrics(WalkMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Delivers the ions collected for the BatchUpdateListener right away, if there are any.
+     */
+    public synchronized void flushUpdates() {
+        WalkMetrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        deliverBatch();
+        if (metrics != null)
+            metrics.recordListenerTime(System.nanoTime() - start);
+    }
+
+    /**
+     * Delivers the ions collected for the BatchUpdateListener, if there are any. Must be called
+     * while holding the lock of the model.
+     */
+    private void deliverBatch() {
+        if (batchUpdateListener != null && batchCount > 0) {
+            batchUpdateListener.update(batchXs, batchYs, batchOrder, batchCount);
+        }
+        batchCount = 0;
+    }
+
+    /**
+     * Getter for the statistics of the crystal, which are updated as every ion crystallizes. The
+     * object stays the same for the life of the model and is cheap to poll while the crystal grows.
+     * @return The statistics of the crystal.
+     */
+    public GrowthStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Getter for the current radius of the crystal, including a small margin.
+     * @return An int value representing the current radius.
+     */
+    public int getCurrentRadius() {
+        return currentRadius.get();
+    }
+
+    /**
+     * Getter for the number of crystallized cells, including the one in the middle.
+     * @return A long value representing the number of particles in the crystal.
+     */
+    public long getParticleCount() {
+        return particleCount.get();
+    }
+
+    /**
+     * Getter for the total number of moves of the ions walked by crystallizeOneIon() since
+     * the last reset. A jump or a reinjection counts as one move.
+     * @return A long value representing the number of moves.
+     */
+    public long getWalkSteps() {
+        return walkSteps;
+    }
+
     /**
      * Sets the modelUpdateListener for this specific object
      * @param modelUpdateListener A ModelUpdateListener
@@ -74,6 +287,16 @@ public class CrystalModel {
         this.modelUpdateListener = modelUpdateListener;
     }
 
+    /**
+     * Sets the random generator used by crystallizeOneIon(). A seeded model reseeds it for
+     * every ion, so the crystal only depends on the seed and the kind of generator. Note that
+     * the DeterministicGrowthEngine always uses a SplitMixRandom.
+     * @param random The random generator, e.g. a SplitMixRandom (the default) or an XoroshiroRandom.
+     */
+    public void setRandom(WalkRandom random) {
+        ion = new Ion(random);
+    }
+
     /**
      * Toggles extremeMode on and off.
      */
@@ -81,6 +304,63 @@ public class CrystalModel {
         extremeMode = !extremeMode;
     }
 
+    /**
+     * Toggles the accelerated walk on and off. When it is on, an ion that is far from the
+     * crystal jumps to a random point on a circle around itself instead of taking every
+     * single step, see {@link CrystalModel#jump(Ion)}.
+     */
+    public void toggleAcceleratedWalk() {
+        acceleratedWalk = !acceleratedWalk;
+    }
+
+    /**
+     * Toggles between discarding an ion that reaches the escape circle (the default) and
+     * returning it to the start circle, see {@link CrystalModel#reinject(Ion)}.
+     */
+    public void toggleReinjection() {
+        reinjectEscaped = !reinjectEscaped;
+    }
+
+    /**
+     * Toggles the adaptive radii on and off. When they are on, ions are dropped on a circle of
+     * launchFactor times the current radius and discarded (or reinjected) on a kill circle of about
+     * killFactor times the current radius, instead of on the start and escape circles, so early in
+     * the growth the ions do not wander across the whole empty bath. See
+     * {@link CrystalModel#setAdaptiveRadii(double, double)}. Extreme mode does not matter while they are on.
+     * <p>
+     * The kill circle is not moved while they are off, so when they are turned on again it is first
+     * moved out to the crystal that has grown in the meantime, before any ion can see it. That
+     * writes to stopRep, which the walk also writes without a lock, so like reset() this must not be
+     * called while ions are crystallizing.
+     */
+    public void toggleAdaptiveRadii() {
+        if (!adaptiveRadii)
+            growKillCircle(currentRadius.get());
+        adaptiveRadii = !adaptiveRadii;
+    }
+
+    /**
+     * Sets the factors of the adaptive radii, see {@link CrystalModel#toggleAdaptiveRadii()}. The
+     * circles never grow past the start and escape circles.
+     * @param launchFactor The radius that ions are dropped on, relative to the current radius, at least 1.
+     * @param killFactor The radius of the kill circle relative to the current radius, larger than launchFactor.
+     */
+    public void setAdaptiveRadii(double launchFactor, double killFactor) {
+        if (!(launchFactor >= 1) || !(killFactor > launchFactor)) {
+            throw new IllegalArgumentException("The kill factor must be larger than the launch factor, which must be at least 1!");
+        }
+        this.launchFactor = launchFactor;
+        this.killFactor = killFactor;
+    }
+
+    /**
+     * Checks whether the adaptive radii are on, see {@link CrystalModel#toggleAdaptiveRadii()}.
+     * @return "true" if the start and kill circles follow the current radius.
+     */
+    boolean isAdaptiveRadii() {
+        return adaptiveRadii;
+    }
+
     /**
      * Kontrollera om det finns en kristalliserad jon på position x,y.
      * @param x koordinaten
@@ -89,7 +369,7 @@ public class CrystalModel {
      */
     public boolean getModelValue(int x, int y) {
         if(y < size && x < size)
-            return modelRep[yBathToModelRep(y)][xBathToModelRep(x)];
+            return modelRep.get(xBathToModelRep(x), yBathToModelRep(y));
         else
             return false;
     }
@@ -101,63 +381,98 @@ public class CrystalModel {
      * på startcirkeln) och "true" om vi kan kristallisera fler joner
      */
     public boolean crystallizeOneIon() {
-        dropNewIon();
-
-        Random random = new Random();
+        if (seeded)
+            ion.random.setSeed(ionSeed(ionCount));
+        ion.index = ionCount++;
 
-        while (!getModelValue(x, y)) {
-            /*try {
-                Thread.sleep(500);
+        dropNewIon(ion);
 
-            } catch(InterruptedException e) {}*/
+        Outcome outcome = walk(ion);
+        walkSteps += ion.steps;
+        if (outcome == Outcome.STUCK)
+            outcome = crystallize(ion);
+        recordIon(ion, outcome);
 
-            if (anyNeighbours(x, y)) {
-                //System.out.println("Neighbour found, I'm at " + x + " " + y);
-                modelRep[yBathToModelRep(y)][xBathToModelRep(x)] = true;
-
-                double rad = Math.sqrt(x * x + y * y);
-                int margin = 3;
+        return outcome == Outcome.STUCK || outcome == Outcome.ESCAPED;
+    }
 
-                if (rad + margin > currentRadius)
-                    currentRadius = (int)rad + margin;
+    /**
+     * Moves the ion one step at a time until it has a crystallized neighbour or reaches the
+     * escape circle. The ion is not crystallized, that is done by
+     * {@link CrystalModel#crystallize(Ion)}, so a walk never changes the model. This may be
+     * called from several threads at once with different ions.
+     * @param ion The ion to walk, it must already have been dropped on the start circle.
+     * @return STUCK if the ion should crystallize where it is, ESCAPED or LOST.
+     */
+    Outcome walk(Ion ion) {
+        while (true) {
+            // a single read decides whether anything but a step can happen here
+            boolean stop = stopRep.get(xBathToModelRep(ion.x), yBathToModelRep(ion.y));
 
-                //System.out.println(currentRadius + " " + startCircleRadius);
+            if (stop) {
+                if (getModelValue(ion.x, ion.y))
+                    return Outcome.LOST;
 
-                if (this.modelUpdateListener != null) modelUpdateListener.update();
+                if (anyNeighbours(ion.x, ion.y))
+                    return Outcome.STUCK;
+            }
 
-                if (outsideCicle(startCircleRadius, x, y)) {
-                    return false;
+            ion.steps++;
 
-                }
+            if (stop && outsideCicle(killRadius(), ion.x, ion.y)) {
+                if (!reinjectEscaped)
+                    return Outcome.ESCAPED;
 
-                //System.out.println(this);
-                return true;
+                reinject(ion);
+                continue;
             }
 
-            if (outsideCicle(escapeCircleRadius, x, y)) {
-                return true;
+            if (acceleratedWalk && jump(ion)) {
+                continue;
             }
 
-            switch (random.nextInt(4)) {
-                case 0:
-                    x++;
-                    break;
-                case 1:
-                    x--;
-                    break;
-                case 2:
-                    y++;
-                    break;
-                case 3:
-                    y--;
-                    break;
-                default:
-                    break;
-            }
+            step(ion);
+        }
+    }
 
-            //System.out.println("Current Position: " + x + " " + y);
+    /**
+     * Crystallizes an ion that walk() found a crystallized neighbour for. This may be called
+     * from several threads at once, provided that the lattice is a ConcurrentBitLattice.
+     * @param ion The ion to crystallize.
+     * @return STUCK if the ion crystallized inside the start circle, COMPLETE if the crystal
+     * has reached the start circle, or LOST if another thread took the cell first.
+     */
+    Outcome crystallize(Ion ion) {
+        if (!attach(ion))
+            return Outcome.LOST;
+
+        if (outsideCicle(startCircleRadius, ion.x, ion.y))
+            return Outcome.COMPLETE;
+
+        return Outcome.STUCK;
+    }
+
+    /**
+     * Moves the ion a single step up, down, left or right.
+     * @param ion The ion to move.
+     */
+    void step(Ion ion) {
+        switch (ion.random.nextDirection()) {
+            case 0:
+                ion.x++;
+                break;
+            case 1:
+                ion.x--;
+                break;
+            case 2:
+                ion.y++;
+                break;
+            case 3:
+                ion.y--;
+                break;
+            default:
+                break;
         }
-        return false;
     }
 
     /**
@@ -179,19 +494,149 @@ public class CrystalModel {
 
     /**
      * Initierar modellen (dvs matrisen) och lägger en första kristalliserad jon mitt i "badet".
+     * Matrisen återanvänds mellan körningar, den töms bara.
      */
     public void reset() {
         x = 0;
         y = 0;
+        ion.x = 0;
+        ion.y = 0;
+        ionCount = 0;
+        walkSteps = 0;
+        particleCount.set(1);
 
-        modelRep = new boolean[size][size];
-        modelRep[yBathToModelRep(0)][xBathToModelRep(0)] = true;
+        if (modelRep == null)
+            modelRep = new BitLattice(size);
+        else
+            modelRep.clear();
+
+        if (distanceMap == null)
+            distanceMap = new DistanceMap(size);
+        else
+            distanceMap.clear();
+
+        if (stopRep == null)
+            stopRep = modelRep.emptyCopy();
+        else
+            stopRep.clear();
+        markGuardBand();
+        killCircleRadius = 0;
+
+        modelRep.set(xBathToModelRep(0), yBathToModelRep(0));
+        statistics.clear();
+        statistics.add(0, 0);
+        distanceMap.markOccupied(xBathToModelRep(0), yBathToModelRep(0));
+        markFrontier(xBathToModelRep(0), yBathToModelRep(0));
 
         if(modelUpdateListener != null) {
             modelUpdateListener.reset();
         }
 
-        currentRadius = 5;
+        synchronized (this) {
+            batchCount = 0;
+            if (ageMap != null) {
+                ageMap.clear();
+                ageMap.set(escapeCircleRadius + 4, escapeCircleRadius + 4, 1);
+            }
+            if (batchUpdateListener != null) {
+                batchUpdateListener.reset();
+            }
+            if (stickLog != null) {
+                stickLog.reset();
+            }
+        }
+
+        currentRadius.set(5);
+        if (adaptiveRadii)
+            growKillCircle(currentRadius.get());
+    }
+
+    /**
+     * Writes a checkpoint of the growth to the file of the model: the radii, the counters, the last
+     * crystallized ion and the state of the random generator go into the header, and the header
+     * and the crystal are forced to the disk. The crystal itself is already in the file, so this is
+     * cheap enough to call every few seconds. It must not be called while a growth engine is growing
+     * the model.
+     */
+    public synchronized void checkpoint() {
+        if (!(modelRep instanceof MappedLattice)) {
+            throw new IllegalStateException("Only a model stored in a MappedLattice can be checkpointed!");
+        }
+        MappedLattice file = (MappedLattice) modelRep;
+        long[] random = ion.random.getState();
+        if (random.length > MappedLattice.MAX_RANDOM_LENGTH) {
+            throw new IllegalStateException("The state of the random generator does not fit in the file!");
+        }
+
+        file.setHeader(MappedLattice.ESCAPE_RADIUS, escapeCircleRadius);
+        file.setHeader(MappedLattice.CURRENT_RADIUS, currentRadius.get());
+        file.setHeader(MappedLattice.ION_COUNT, ionCount);
+        file.setHeader(MappedLattice.WALK_STEPS, walkSteps);
+        file.setHeader(MappedLattice.LAST_X, x);
+        file.setHeader(MappedLattice.LAST_Y, y);
+        file.setHeader(MappedLattice.SEEDED, seeded ? 1 : 0);
+        file.setHeader(MappedLattice.SEED, seed);
+        file.setHeader(MappedLattice.RANDOM_LENGTH, random.length);
+        for (int i = 0; i < random.length; i++) {
+            file.setHeader(MappedLattice.RANDOM_STATE + i, random[i]);
+        }
+        file.setHeader(MappedLattice.PARTICLE_COUNT, particleCount.get());
+        file.force();
+    }
+
+    /**
+     * Continues a growth from the checkpoint in a file. The crystal is read back from the file and
+     * the distance map and the frontier are rebuilt from it. The particle count and the radius are
+     * also taken from the crystal, since cells that crystallized after the last checkpoint may have
+     * reached the file before the JVM died; a seeded growth is only repeated exactly from a file that
+     * was not changed after its checkpoint.
+     * @param file The lattice file with a checkpoint.
+     */
+    private void resume(MappedLattice file) {
+        if (file.getHeader(MappedLattice.ESCAPE_RADIUS) != escapeCircleRadius) {
+            throw new IllegalArgumentException("The file was written by a model of another size!");
+        }
+        ionCount = file.getHeader(MappedLattice.ION_COUNT);
+        walkSteps = file.getHeader(MappedLattice.WALK_STEPS);
+        x = (int) file.getHeader(MappedLattice.LAST_X);
+        y = (int) file.getHeader(MappedLattice.LAST_Y);
+
+        // an unseeded model started with a new generator of another kind just keeps its own sequence
+        long[] random = new long[(int) file.getHeader(MappedLattice.RANDOM_LENGTH)];
+        for (int i = 0; i < random.length; i++) {
+            random[i] = file.getHeader(MappedLattice.RANDOM_STATE + i);
+        }
+        if (random.length == ion.random.getState().length)
+            ion.random.setState(random);
+
+        distanceMap = new DistanceMap(size);
+        stopRep = modelRep.emptyCopy();
+        markGuardBand();
+        killCircleRadius = 0;
+
+        long particles = 0;
+        int radius = (int) file.getHeader(MappedLattice.CURRENT_RADIUS);
+        statistics.clear();
+        // the rows are read as packed words, so only the crystallized cells are visited
+        long[] words = new long[(size + 63) >>> 6];
+        for (int row = 0; row < size; row++) {
+            modelRep.getRow(row, words);
+            for (int i = 0; i < words.length; i++) {
+                for (long w = words[i]; w != 0; w &= w - 1) {
+                    int col = (i << 6) + Long.numberOfTrailingZeros(w);
+                    particles++;
+                    statistics.add(col - escapeCircleRadius - 4, escapeCircleRadius + 4 - row);
+                    distanceMap.markOccupied(col, row);
+                    markFrontier(col, row);
+                    int margin = 3;
+                    radius = Math.max(radius, (int) (distance(col - escapeCircleRadius - 4, escapeCircleRadius + 4 - row) + margin));
+                }
+            }
+        }
+        particleCount.set(particles);
+        currentRadius.set(radius);
+        if (adaptiveRadii)
+            growKillCircle(radius);
     }
 
     /**
@@ -203,13 +648,31 @@ public class CrystalModel {
      * @return "true" om positionen är utanför cirkeln
      */
     public static boolean outsideCicle(int r, int x, int y) {
-        double distance = x * x + y * y;
-        return distance >= r * r;
+        double distance = (double) x * x + (double) y * y;
+        return distance >= (double) r * r;
+    }
+
+    /**
+     * Getter for the stop layer: the crystallized cells, the empty cells next to them and the guard band
+     * outside the escape circle, i.e. the cells where a walking ion has to do more than take a step.
+     * @return The stop layer, in model representation like the lattice of the crystal.
+     */
+    Lattice getStopLattice() {
+        return stopRep;
+    }
+
+    /**
+     * Getter for the lattice that the crystal is stored in, e.g. for a {@link CrystalExporter}.
+     * @return The lattice.
+     */
+    Lattice getLattice() {
+        return modelRep;
     }
 
     /**
      * Returns the crystals state i.e. a string according to figure 3 i labPM.
-     * x and y is the position of the ion in the bath
+     * x and y is the position of the ion in the bath. The whole picture is built in memory, use a
+     * {@link CrystalExporter} for large crystals.
      * @return A string that draws the crystal.
      */
     public String toString() {
@@ -217,7 +680,7 @@ public class CrystalModel {
         int y = getY();
 
         int size = getEscapeCircleRadius();
-        StringBuffer s = new StringBuffer(1000);
+        StringBuilder s = new StringBuilder((2 * size + 3) * (2 * size + 2));
 
         for(int i = -size - 1; i < size + 1; i++) {
             s.append("-");
@@ -250,22 +713,323 @@ public class CrystalModel {
 
     /**
      * Släpper en jon på startcirkeln (dvs slumpar fram en ny punkt x,y på startcirkeln).
+     * @param ion Jonen som ska släppas
      */
-    private void dropNewIon() {
-        Random random = new Random();
+    void dropNewIon(Ion ion) {
+        // a uniform point in the unit disc gives a uniform angle, without any trigonometry:
+        // (u + iv)^2 / |u + iv|^2 is the point on the unit circle at twice the angle of u + iv
+        double u, v, s;
+        do {
+            u = 2 * ion.random.nextDouble() - 1;
+            v = 2 * ion.random.nextDouble() - 1;
+            s = u * u + v * v;
+        } while (s >= 1 || s == 0);
 
-        int angle = random.nextInt(360);
+        int radius = startRadius();
+        ion.launchRadius = radius;
+        ion.radiusChanged = false;
+        ion.steps = 0;
 
-        int radius;
+        ion.x = (int) Math.round(radius * (u * u - v * v) / s);
+        ion.y = (int) Math.round(radius * 2 * u * v / s);
+    }
+
+    /**
+     * Crystallizes the ion at its position, grows the current radius and notifies the listener.
+     * The cell is set with Lattice.trySet, so if two ions try to crystallize on the same cell at
+     * the same time only one of them succeeds. Listener calls are serialized on the model.
+     * @param ion The ion to crystallize.
+     * @return "true" if the ion crystallized, "false" if the cell was already taken.
+     */
+    private boolean attach(Ion ion) {
+        int col = xBathToModelRep(ion.x);
+        int row = yBathToModelRep(ion.y);
+
+        if (!modelRep.trySet(col, row))
+            return false;
+
+        long order = particleCount.incrementAndGet();
+        statistics.add(ion.x, ion.y);
+
+        distanceMap.markOccupied(col, row);
+        markFrontier(col, row);
 
-        if (extremeMode)
-            radius = currentRadius;
+        double rad = distance(ion.x, ion.y);
+        int margin = 3;
+        int radius = currentRadius.accumulateAndGet((int) (rad + margin), Math::max);
+        if (adaptiveRadii)
+            growKillCircle(radius);
+
+        if (modelUpdateListener != null || batchUpdateListener != null || stickLog != null || ageMap != null) {
+            synchronized (this) {
+                x = ion.x;
+                y = ion.y;
+                if (stickLog != null)
+                    stickLog.append(ion.x, ion.y, ion.index, ion.steps);
+                if (ageMap != null)
+                    ageMap.set(ion.x + escapeCircleRadius + 4, ion.y + escapeCircleRadius + 4, order);
+
+                WalkMetrics metrics = this.metrics;
+                long start = metrics != null ? System.nanoTime() : 0;
+                if (modelUpdateListener != null)
+                    modelUpdateListener.update();
+                if (batchUpdateListener != null)
+                    addToBatch(ion.x, ion.y, order);
+                if (metrics != null)
+                    metrics.recordListenerTime(System.nanoTime() - start);
+            }
+        } else {
+            x = ion.x;
+            y = ion.y;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a crystallized ion to the batch and delivers the batch if it is full or too old.
+     * Must be called while holding the lock of the model.
+     * @param x The x-coordinate of the ion.
+     * @param y The y-coordinate of the ion.
+     * @param order The stick order of the ion.
+     */
+    private void addToBatch(int x, int y, long order) {
+        if (batchCount == 0 && batchDelay > 0)
+            batchStart = System.nanoTime();
+
+        batchXs[batchCount] = x;
+        batchYs[batchCount] = y;
+        batchOrder[batchCount] = order;
+        batchCount++;
+
+        if (batchCount == batchXs.length || (batchDelay > 0 && System.nanoTime() - batchStart >= batchDelay))
+            deliverBatch();
+    }
+
+    /**
+     * Counts an ion whose walk is over in the metrics of the model, if it has any. Growth engines
+     * call this for the ions they walk on behalf of the model.
+     * @param ion The ion.
+     * @param outcome How the walk ended, after the ion was crystallized if it got stuck.
+     */
+    void recordIon(Ion ion, Outcome outcome) {
+        WalkMetrics metrics = this.metrics;
+        if (metrics != null)
+            metrics.recordIon(ion.steps, outcome);
+    }
+
+    /**
+     * Checks whether escaped ions are reinjected, see {@link CrystalModel#toggleReinjection()}.
+     * @return "true" if escaped ions are returned to the start circle.
+     */
+    boolean isReinjecting() {
+        return reinjectEscaped;
+    }
+
+    /**
+     * Checks whether the accelerated walk is on, see {@link CrystalModel#toggleAcceleratedWalk()}.
+     * @return "true" if ions far from the crystal jump.
+     */
+    boolean isAcceleratedWalk() {
+        return acceleratedWalk;
+    }
+
+    /**
+     * Checks whether the model was created with a seed.
+     * @return "true" if the walk of every ion is determined by the seed.
+     */
+    boolean isSeeded() {
+        return seeded;
+    }
+
+    /**
+     * Getter for the number of ions dropped since the last reset. For a seeded model this is
+     * the index that the seed of the next ion is derived from.
+     * @return The number of ions dropped.
+     */
+    long getIonCount() {
+        return ionCount;
+    }
+
+    /**
+     * Sets the number of ions dropped since the last reset, used by growth engines that drop
+     * ions on behalf of the model.
+     * @param ionCount The number of ions dropped.
+     */
+    void setIonCount(long ionCount) {
+        this.ionCount = ionCount;
+    }
+
+    /**
+     * Derives the seed for the random generator of one ion from the seed of the model, so that
+     * the walk of an ion only depends on the seed and the index of the ion.
+     * @param index The index of the ion, counted from the last reset.
+     * @return The seed for the ion.
+     */
+    long ionSeed(long index) {
+        return WalkRandom.ionSeed(seed, index);
+    }
+
+    /**
+     * Returns the radius of the circle that new ions are dropped on.
+     * @return launchFactor times currentRadius with adaptive radii, currentRadius in extremeMode,
+     * otherwise startCircleRadius.
+     */
+    private int startRadius() {
+        if (adaptiveRadii)
+            return Math.min(startCircleRadius, (int) Math.ceil(launchFactor * currentRadius.get()));
+        else if (extremeMode)
+            return currentRadius.get();
         else
-            radius = startCircleRadius;
+            return startCircleRadius;
+    }
+
+    /**
+     * Returns the radius of the circle where a walking ion is discarded or reinjected.
+     * @return The kill circle with adaptive radii, once it has been marked, otherwise escapeCircleRadius.
+     */
+    int killRadius() {
+        int radius = killCircleRadius;
+        return adaptiveRadii && radius > 0 ? radius : escapeCircleRadius;
+    }
+
+    /**
+     * Moves the kill circle out when the crystal has grown, by marking a new guard band for it in
+     * stopRep. A guard band cannot be removed again without also removing frontier cells, so the
+     * old bands stay behind as cells where ions stop for nothing; to keep them few, the kill circle
+     * grows by at least a factor 1.25 at a time and so lies between killFactor and 1.25 * killFactor
+     * times the current radius. It is always at least two cells outside the start circle, and is
+     * only moved by one thread at a time.
+     * @param radius The current radius.
+     */
+    private void growKillCircle(int radius) {
+        // the start circle of the adaptive radii, also while they are being turned on
+        int start = Math.min(startCircleRadius, (int) Math.ceil(launchFactor * radius));
+        int wanted = Math.max((int) Math.ceil(killFactor * radius), start + 2);
+        if (wanted <= killCircleRadius)
+            return;
+
+        synchronized (stopRep) {
+            int current = killCircleRadius;
+            if (wanted <= current)
+                return;
+            int kill = Math.min(escapeCircleRadius, Math.max(wanted, (int) (current * KILL_RADIUS_GROWTH)));
+            if (kill < escapeCircleRadius)
+                markGuardBand(kill);
+            killCircleRadius = kill;
+        }
+    }
+
+    /**
+     * Moves an ion that has reached the escape circle back to the start circle, at the point
+     * where its walk would have hit the start circle first. A planar random walk always
+     * returns, and seen from a point at distance r the first hit on a circle with radius R < r
+     * is distributed according to the harmonic measure
+     * <pre>
+     *     p(theta) = (1 - q^2) / (2 pi (1 + q^2 - 2 q cos(theta - phi))),   q = R / r,
+     * </pre>
+     * where phi is the angle of the ion. That is a wrapped Cauchy distribution, which is
+     * sampled exactly by theta = phi + 2 atan((r - R) / (r + R) * tan(pi (u - 1/2))).
+     * <p>
+     * Nothing of the walk is thrown away and the growth is not biased, so the escape circle
+     * no longer has to be small to save time.
+     * @param ion The ion that has escaped.
+     */
+    void reinject(Ion ion) {
+        double rad = distance(ion.x, ion.y);
+        int radius = startRadius();
+        if (radius != ion.launchRadius)
+            ion.radiusChanged = true;
+
+        double phi = Math.atan2(ion.y, ion.x);
+        double spread = (rad - radius) / (rad + radius);
+        double theta = phi + 2 * Math.atan(spread * Math.tan(Math.PI * (ion.random.nextDouble() - 0.5)));
+
+        ion.x = (int) Math.round(radius * Math.cos(theta));
+        ion.y = (int) Math.round(radius * Math.sin(theta));
+    }
+
+    /**
+     * Lets the ion jump to a uniformly random point on a circle around itself, provided that
+     * the circle is free from crystallized cells and lies within the escape circle. A random
+     * walk started in the middle of such a circle leaves it at a uniformly distributed point,
+     * so the jump replaces roughly jumpRadius^2 single steps without changing the statistics.
+     * <p>
+     * The free distance is the larger of what the DistanceMap guarantees and the distance to
+     * the current radius of the crystal. Two cells are subtracted from it so that rounding to
+     * the lattice never lands the ion on, or next to, a crystallized cell.
+     * @param ion The walking ion.
+     * @return "true" if the ion jumped, "false" if it is too close to the crystal or the
+     * escape circle and should take a single step instead.
+     */
+    private boolean jump(Ion ion) {
+        double rad = distance(ion.x, ion.y);
+        int clearance = Math.max(distanceMap.clearance(xBathToModelRep(ion.x), yBathToModelRep(ion.y)),
+                (int) rad - currentRadius.get());
+        int jumpRadius = Math.min(clearance - 2, killRadius() - (int) Math.ceil(rad));
 
-        x = (int) (radius * Math.cos(Math.toRadians(angle)) + 0.5);
-        y = (int) (radius * Math.sin(Math.toRadians(angle)) + 0.5);
-        //System.out.println("Dropping new at " + x + " " + y);
+        if (jumpRadius < MIN_JUMP_RADIUS)
+            return false;
+
+        double angle = 2 * Math.PI * ion.random.nextDouble();
+        ion.x += (int) Math.round(jumpRadius * Math.cos(angle));
+        ion.y += (int) Math.round(jumpRadius * Math.sin(angle));
+        return true;
+    }
+
+    /**
+     * Calculates the distance from the middle of the bath, without overflowing for large baths.
+     * @param x The x-coordinate in the bath.
+     * @param y The y-coordinate in the bath.
+     * @return The distance.
+     */
+    private static double distance(int x, int y) {
+        return Math.sqrt((double) x * x + (double) y * y);
+    }
+
+    /**
+     * Marks a crystallized cell and its four neighbours in stopRep, so that an ion walking onto
+     * any of them stops and checks whether it should crystallize.
+     * @param col The column of the crystallized cell.
+     * @param row The row of the crystallized cell.
+     */
+    private void markFrontier(int col, int row) {
+        stopRep.set(col, row);
+        stopRep.set(col, row - 1);
+        stopRep.set(col, row + 1);
+        stopRep.set(col - 1, row);
+        stopRep.set(col + 1, row);
+    }
+
+    /**
+     * Marks the guard band in stopRep: the ring of cells at a distance from escapeCircleRadius
+     * up to (but not including) escapeCircleRadius + 2. A single step moves an ion less than one
+     * cell further out, and jumps never go past the escape circle, so an ion that leaves the
+     * escape circle always stops in the band first and the walk never has to check the escape
+     * circle anywhere else. The band stays inside the lattice thanks to the margin of 4.
+     */
+    private void markGuardBand() {
+        markGuardBand(escapeCircleRadius);
+    }
+
+    /**
+     * Marks a guard band in stopRep for a circle, see {@link CrystalModel#markGuardBand()}.
+     * @param radius The radius of the circle, at most escapeCircleRadius.
+     */
+    private void markGuardBand(int radius) {
+        long inner = (long) radius * radius;
+        long outer = (long) (radius + 2) * (radius + 2);
+
+        for (int y = -radius - 1; y <= radius + 1; y++) {
+            long yy = (long) y * y;
+            int x = (int) Math.sqrt(Math.max(inner - yy, 0));
+            while (x > 0 && (long) (x - 1) * (x - 1) + yy >= inner) x--;
+            while ((long) x * x + yy < inner) x++;
+
+            for (; (long) x * x + yy < outer; x++) {
+                stopRep.set(xBathToModelRep(x), yBathToModelRep(y));
+                stopRep.set(xBathToModelRep(-x), yBathToModelRep(y));
+            }
+        }
     }
 
     /**
@@ -294,13 +1058,8 @@ public class CrystalModel {
      * @param y koordinaten
      * @return "true" om jonen har några grannar som kristalliserats
      */
-    private boolean anyNeighbours(int x, int y) {
-        if(getModelValue(x, y + 1)) return true;
-        if(getModelValue(x, y - 1)) return true;
-        if(getModelValue(x + 1, y)) return true;
-        if(getModelValue(x - 1, y)) return true;
-
-        return false;
+    boolean anyNeighbours(int x, int y) {
+        return modelRep.anyNeighbours(xBathToModelRep(x), yBathToModelRep(y));
     }
 
 }
\ No newline at end of file
@@ -7,6 +7,10 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
 
 /**
  * Created by estrozix on 1/31/17.
@@ -15,12 +19,60 @@ import java.awt.image.BufferedImage;
 /**
  * A JPanel which contains a BufferedImage that will be drawn during a paintComponent call.
  * The image can be translated and zoomed in to with mouse control, the data from which is stored in a corresponding AffineTransform object.
+ * <p>
+ * Updates from the simulation are only queued in a lock-free buffer. A Swing timer drains the buffer once per frame,
+ * writes the pixels straight into the DataBufferByte of the image and repaints only the part of the view that changed,
+ * so the simulation never waits for the painting.
+ * <p>
+ * The image has one byte per pixel, an index into an IndexColorModel: 0 is black, 1 to 253 is a colour ramp from the
+ * oldest to the newest part of the crystal, 254 is red and 255 is green. Without an {@link AgeMap} the crystal is red
+ * with the last stick green, as it has always been. With an AgeMap the pixels are coloured by the age of their cells,
+ * which is read from the map rather than passed with the updates. An age is made an index by dropping as few bits as
+ * needed to fit the newest age in the ramp, so the first 253 sticks get a colour each and a large crystal always uses
+ * at least half of the ramp. The crystal is redrawn from the map whenever one more bit has to go, which happens once
+ * every time the crystal doubles. The palette stays the same while the crystal grows, so the images are never
+ * replaced and a frame only repaints what changed. Changing the colours only changes the palette, so the crystal can
+ * be recoloured at any time without touching a pixel.
+ * <p>
+ * Note: the pixels are written through DataBufferByte.setElem rather than through the array from getData(), since
+ * taking the array makes the image untrackable and Java2D would stop caching it as a managed (accelerated) image.
+ * <p>
+ * To keep zooming out and panning smooth on large images the view also keeps a pyramid of smaller copies of the image,
+ * each half the size of the one before, that are updated pixel by pixel along with the image. A pixel of a smaller copy
+ * has the largest index of the four pixels it covers, i.e. the newest, so thin branches do not fade away. The paint
+ * uses the copy that matches the zoom level and only draws the tiles of it that intersect the clip.
  */
 public class CrystalView extends JPanel {
 
+    private static final int FRAME_DELAY = 1000 / 60; // milliseconds between two frames
+    // the indices of the palette
+    private static final int AGE_COLOURS = 253; // the colour ramp, from index 1 (oldest) to 253 (newest)
+    private static final int RED = 254;
+    private static final int GREEN = 255;
+
     private BufferedImage image;
     private int size;
 
+    private final StickBuffer sticks = new StickBuffer(18); // updates waiting for the next frame
+    private final long[] frame = new long[1 << 14]; // updates drained from sticks
+    private final Timer frameTimer;
+
+    private final DataBufferByte pixels; // the pixels of image, one byte (an index of the palette) per pixel
+    private final int scanline; // distance in pixels between two rows of the image
+    private final byte[] blackRow;
+
+    private Color oldest = new Color(0x20, 0x30, 0xB0); // the colour ramp by age
+    private Color newest = new Color(0xFF, 0xE0, 0x40);
+    private AgeMap ages; // null when the crystal is red
+    private int agesShift; // the shift of the age map when the pixels were last drawn from it
+    private int rampShift; // the number of bits of an age that are dropped to make it an index
+
+    private static final int MIN_LEVEL_SIZE = 64; // the pyramid stops before the copies get smaller than this
+    private static final int TILE = 512; // the pyramid is drawn in tiles of this many pixels of a level
+    private final BufferedImage[] levels; // levels[0] is the image, levels[k] is 2^k times smaller
+    private final DataBufferByte[] levelPixels;
+    private final int[] levelScanlines;
+
     AffineTransform af = new AffineTransform();
 
     int mousePosX = -1;
@@ -37,7 +89,27 @@ public class CrystalView extends JPanel {
         this.setBackground(Color.BLACK);
         this.setVisible(true);
 
-        this.image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        IndexColorModel palette = palette();
+        this.image = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_INDEXED, palette);
+        this.pixels = (DataBufferByte) image.getRaster().getDataBuffer();
+        this.scanline = ((ComponentSampleModel) image.getSampleModel()).getScanlineStride();
+        this.blackRow = new byte[size];
+
+        int count = 1;
+        while ((size >> count) >= MIN_LEVEL_SIZE) {
+            count++;
+        }
+        levels = new BufferedImage[count];
+        levelPixels = new DataBufferByte[count];
+        levelScanlines = new int[count];
+        for (int k = 0; k < count; k++) {
+            levels[k] = k == 0 ? image : new BufferedImage(levelSize(k), levelSize(k), BufferedImage.TYPE_BYTE_INDEXED, palette);
+            levelPixels[k] = (DataBufferByte) levels[k].getRaster().getDataBuffer();
+            levelScanlines[k] = ((ComponentSampleModel) levels[k].getSampleModel()).getScanlineStride();
+        }
+
+        frameTimer = new Timer(FRAME_DELAY, actionEvent -> drawFrame());
+        frameTimer.start();
 
         MouseAdapter mouse = new MouseAdapter() {
             @Override
@@ -133,15 +205,34 @@ public class CrystalView extends JPanel {
     private int lastX, lastY = -1;
 
     /**
-     * Clears the BufferedImage of all content, resetting the image.
+     * Clears the BufferedImage of all content, resetting the image. Updates that have not been drawn yet are dropped.
+     * <p>
+     * Note: the image is only touched by the Swing thread. If this is called from another thread, which must be the one
+     * that calls updateImage, the reset is queued in order with the updates and made in the next frame, so only the
+     * updates queued before it are dropped and those queued after it, e.g. the seed of the new crystal, are kept.
      */
     public void resetImage() {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            sticks.mark();
+            return;
+        }
+
+        sticks.clear();
+        clearImage();
+    }
+
+    /**
+     * Blackens the image and the pyramid, and forgets the last stick.
+     */
+    private void clearImage() {
         lastX = -1;
         lastY = -1;
 
-        for (int y = 0; y < size; y++) {
-            for(int x = 0; x < size; x++) {
-                image.setRGB(x, y, Color.BLACK.getRGB());
+        for (int k = 0; k < levels.length; k++) {
+            WritableRaster raster = levels[k].getRaster();
+            int levelSize = levelSize(k);
+            for (int y = 0; y < levelSize; y++) {
+                raster.setDataElements(0, y, levelSize, 1, blackRow);
             }
         }
 
@@ -150,30 +241,289 @@ public class CrystalView extends JPanel {
     }
 
     /**
-     * Paints a pixel on the BufferedImage green, and sets the previously painted dot to red.
+     * Colours the crystal by the age of its cells, which are read from a map that a CrystalModel writes, see
+     * {@link CrystalModel#setAgeMap(AgeMap)}. The cells that are already in the map are redrawn at once.
+     * <p>
+     * Note: the image is only touched by the Swing thread, if this is called from another thread it is run later on the Swing thread.
+     * @param ages The map, with the size of the view, or null to paint the new sticks red again.
+     */
+    public void setAgeMap(AgeMap ages) {
+        if (ages != null && ages.getSize() != levelSize(0)) {
+            throw new IllegalArgumentException("The age map is made for another size!");
+        }
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> setAgeMap(ages));
+            return;
+        }
+
+        this.ages = ages;
+        if (ages != null) {
+            redrawAges();
+            repaint();
+        }
+    }
+
+    /**
+     * Sets the colours of the oldest and the newest part of the crystal, when it is coloured by age. Only the palette
+     * of the image is changed, so this is cheap however large the crystal is.
+     * <p>
+     * Note: the image is only touched by the Swing thread, if this is called from another thread it is run later on the Swing thread.
+     * @param oldest The colour of the first cells.
+     * @param newest The colour of the last cells.
+     */
+    public void setColourRamp(Color oldest, Color newest) {
+        if (oldest == null || newest == null) {
+            throw new IllegalArgumentException("The colours cannot be null!");
+        }
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> setColourRamp(oldest, newest));
+            return;
+        }
+
+        this.oldest = oldest;
+        this.newest = newest;
+        applyPalette();
+    }
+
+    /**
+     * Redraws every cell in the age map with the colour of its age, e.g. after the map halved its ages. The caller
+     * repaints the view.
+     */
+    private void redrawAges() {
+        agesShift = ages.getShift();
+        rampShift = rampShift(ages.getMaxAge());
+        ages.forEach((x, y, age) -> setPixel(y, x, indexOf(age)));
+        if (lastX != -1 && lastY != -1)
+            setPixel(lastY, lastX, GREEN);
+    }
+
+    /**
+     * Finds the colour of a crystallized pixel that is not the last stick.
+     * @param x , x-coordinate of the pixel, as given to updateImage
+     * @param y , y-coordinate of the pixel, as given to updateImage
+     * @return the index of the colour in the palette
+     */
+    private int colourOf(int x, int y) {
+        AgeMap ages = this.ages;
+        if (ages == null)
+            return RED;
+        int age = ages.get(x, y);
+        return age == 0 ? RED : indexOf(age);
+    }
+
+    /**
+     * Quantises an age of an AgeMap to an index of the colour ramp. Ages that are newer than the ramp was made for
+     * get the last colour until the crystal is redrawn.
+     * @param age , the age, at least 1
+     * @return the index, 1 to AGE_COLOURS
+     */
+    private int indexOf(int age) {
+        return Math.min(AGE_COLOURS, 1 + ((Math.max(age, 1) - 1) >>> rampShift));
+    }
+
+    /**
+     * Finds how many bits of the ages have to be dropped for the newest age to fit in the colour ramp.
+     * @param maxAge , the newest age
+     * @return the shift
+     */
+    private static int rampShift(int maxAge) {
+        int shift = 0;
+        while ((Math.max(maxAge, 1) - 1) >>> shift >= AGE_COLOURS) {
+            shift++;
+        }
+        return shift;
+    }
+
+    /**
+     * Makes the palette of the image: black, the colour ramp from oldest (index 1) to newest (index AGE_COLOURS), red
+     * and green.
+     * @return the palette
+     */
+    private IndexColorModel palette() {
+        byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+        for (int i = 1; i <= AGE_COLOURS; i++) {
+            float t = (i - 1) / (float) (AGE_COLOURS - 1);
+            r[i] = (byte) Math.round(oldest.getRed() + t * (newest.getRed() - oldest.getRed()));
+            g[i] = (byte) Math.round(oldest.getGreen() + t * (newest.getGreen() - oldest.getGreen()));
+            b[i] = (byte) Math.round(oldest.getBlue() + t * (newest.getBlue() - oldest.getBlue()));
+        }
+        r[RED] = (byte) 0xFF;
+        g[GREEN] = (byte) 0xFF;
+        return new IndexColorModel(8, 256, r, g, b);
+    }
+
+    /**
+     * Gives the image and every level of the pyramid the current palette. The pixels are kept, only the images that
+     * wrap them are new, so this is only done when the colours are changed.
+     */
+    private void applyPalette() {
+        IndexColorModel palette = palette();
+        for (int k = 0; k < levels.length; k++) {
+            levels[k] = new BufferedImage(palette, levels[k].getRaster(), false, null);
+        }
+        image = levels[0];
+        repaint();
+    }
+
+    /**
+     * Paints a pixel on the BufferedImage green, and sets the previously painted dot to red. The pixel is painted in the
+     * next frame, this only queues it, so it may be called from any thread (one at a time) at any rate.
      * <p>
      * Note: Has no effect on any other pixels.
      * @param x , x-coordinate of the dot
      * @param y , y-coordinate of the dot
      */
     public void updateImage(int x, int y) {
-        image.setRGB(y, x, Color.GREEN.getRGB());
+        sticks.add(x, y);
+    }
 
-        if (lastX != -1 && lastY != -1)
-            image.setRGB(lastY, lastX, Color.RED.getRGB());
+    /**
+     * Paints many pixels at once, exactly as if updateImage(xs[i], ys[i]) had been called for each of them in order:
+     * the last one is painted green and the others red. They are all painted in one pass in the next frame.
+     * @param xs , x-coordinates of the dots
+     * @param ys , y-coordinates of the dots
+     * @param count , the number of dots to paint from the start of the arrays
+     */
+    public void updateImage(int[] xs, int[] ys, int count) {
+        for (int i = 0; i < count; i++) {
+            sticks.add(xs[i], ys[i]);
+        }
+    }
+
+    /**
+     * Draws all queued updates into the raster of the image and repaints the rectangle that covers them. Called by the
+     * frame timer on the Swing thread, and by the benchmarks (also on the Swing thread).
+     */
+    void drawFrame() {
+        if (sticks.isEmpty())
+            return;
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+
+        boolean cleared = false; // a reset was queued or the crystal was redrawn, so the whole view is repainted
+
+        int n;
+        while ((n = sticks.drain(frame)) > 0) {
+            for (int i = 0; i < n; i++) {
+                if (frame[i] == StickBuffer.MARK) {
+                    clearImage();
+                    cleared = true;
+                    continue;
+                }
+                int x = StickBuffer.x(frame[i]);
+                int y = StickBuffer.y(frame[i]);
 
-        lastX = x;
-        lastY = y;
+                // note that the image is indexed (y, x), just like before
+                if (lastX != -1 && lastY != -1)
+                    setPixel(lastY, lastX, colourOf(lastX, lastY));
+                setPixel(y, x, GREEN);
 
-        repaint();
+                minX = Math.min(minX, Math.min(y, lastY < 0 ? y : lastY));
+                maxX = Math.max(maxX, Math.max(y, lastY));
+                minY = Math.min(minY, Math.min(x, lastX < 0 ? x : lastX));
+                maxY = Math.max(maxY, Math.max(x, lastX));
+
+                lastX = x;
+                lastY = y;
+            }
+        }
+
+        // the map halved its ages, or the newest age no longer fits the ramp, so the pixels have the wrong colours
+        AgeMap ages = this.ages;
+        if (ages != null && (ages.getShift() != agesShift || rampShift(ages.getMaxAge()) != rampShift)) {
+            redrawAges();
+            cleared = true;
+        }
+
+        Rectangle dirty;
+        if (cleared) {
+            dirty = new Rectangle(0, 0, getWidth(), getHeight());
+        } else {
+            dirty = af.createTransformedShape(new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1)).getBounds();
+            dirty.grow(1, 1);
+        }
+        repaint(dirty);
+    }
+
+    /**
+     * Sets a pixel of the image and updates the pyramid above it. A level is only changed as long as the largest
+     * index of the four pixels below it changes, so most updates stop after a level or two.
+     * @param px , column of the pixel in the image
+     * @param py , row of the pixel in the image
+     * @param index , the new color, as an index of the palette
+     */
+    private void setPixel(int px, int py, int index) {
+        pixels.setElem(py * scanline + px, index);
+
+        for (int k = 1; k < levels.length; k++) {
+            DataBufferByte below = levelPixels[k - 1];
+            int belowScanline = levelScanlines[k - 1];
+            int belowSize = levelSize(k - 1);
+            int cx = px & ~1;
+            int cy = py & ~1;
+
+            int value = below.getElem(cy * belowScanline + cx);
+            if (cx + 1 < belowSize)
+                value = Math.max(value, below.getElem(cy * belowScanline + cx + 1));
+            if (cy + 1 < belowSize) {
+                value = Math.max(value, below.getElem((cy + 1) * belowScanline + cx));
+                if (cx + 1 < belowSize)
+                    value = Math.max(value, below.getElem((cy + 1) * belowScanline + cx + 1));
+            }
+
+            px >>= 1;
+            py >>= 1;
+            int i = py * levelScanlines[k] + px;
+            if (levelPixels[k].getElem(i) == value)
+                return;
+            levelPixels[k].setElem(i, value);
+        }
+    }
+
+    /**
+     * Calculates the width and height of a level of the pyramid.
+     * @param k , the level, 0 for the image itself
+     * @return the size in pixels
+     */
+    private int levelSize(int k) {
+        return (size + (1 << k) - 1) >> k;
     }
 
+    /**
+     * Draws the coarsest level of the pyramid whose pixels are not larger than a pixel of the screen, and only the tiles
+     * of it that intersect the clip.
+     */
     @Override
     public void paintComponent(Graphics g) {
         super.paintComponent(g);
         Graphics2D g2d = (Graphics2D) g;
 
+        double scale = Math.sqrt(Math.abs(af.getDeterminant()));
+        int k = 0;
+        while (k + 1 < levels.length && (1 << (k + 1)) * scale <= 1) {
+            k++;
+        }
+
         g2d.transform(af);
-        g2d.drawImage(image, 0, 0, null);
+        g2d.scale(1 << k, 1 << k);
+
+        int levelSize = levelSize(k);
+        Rectangle visible = new Rectangle(0, 0, levelSize, levelSize);
+        Shape clip = g2d.getClip();
+        if (clip != null)
+            visible = visible.intersection(clip.getBounds());
+        if (visible.isEmpty())
+            return;
+
+        int firstX = visible.x / TILE * TILE;
+        int firstY = visible.y / TILE * TILE;
+        for (int ty = firstY; ty < visible.y + visible.height; ty += TILE) {
+            for (int tx = firstX; tx < visible.x + visible.width; tx += TILE) {
+                int w = Math.min(TILE, levelSize - tx);
+                int h = Math.min(TILE, levelSize - ty);
+                g2d.drawImage(levels[k], tx, ty, tx + w, ty + h, tx, ty, tx + w, ty + h, null);
+            }
+        }
     }
 }
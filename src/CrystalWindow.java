@@ -0,0 +1,69 @@
+import javax.swing.*;
+import java.awt.*;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * A window with a CrystalView that shows a crystal grown, or replayed, by something else than a
+ * CrystalControl, e.g. an OffLatticeModel, a VoxelModel or a StickReplay. The window is a
+ * BatchUpdateListener, which moves the ions from bath-coordinates to the coordinates of the view.
+ */
+public class CrystalWindow implements BatchUpdateListener {
+
+    private final CrystalView view;
+    private final int escapeCircleRadius;
+    private final int[] viewXs;
+    private final int[] viewYs;
+
+    /**
+     * Opens a window that shows the seed of a new crystal.
+     * @param title The title of the window.
+     * @param size The size of the bath.
+     * @param escapeCircleRadius The escape circle radius of the bath, which places the seed in the view.
+     * @param batchSize The largest batch that will be delivered.
+     * @throws InterruptedException If interrupted while the window is created.
+     * @throws InvocationTargetException If the window cannot be created.
+     */
+    public CrystalWindow(String title, int size, int escapeCircleRadius, int batchSize)
+            throws InterruptedException, InvocationTargetException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be at least 1!");
+        }
+        this.view = new CrystalView(size);
+        this.escapeCircleRadius = escapeCircleRadius;
+        this.viewXs = new int[batchSize];
+        this.viewYs = new int[batchSize];
+
+        SwingUtilities.invokeAndWait(() -> {
+            JFrame frame = new JFrame(title);
+            frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+            frame.setLayout(new BorderLayout());
+            frame.add(view);
+            frame.pack();
+            frame.setVisible(true);
+        });
+        view.updateImage(escapeCircleRadius + 4, escapeCircleRadius + 4);
+    }
+
+    /**
+     * Getter for the largest batch that the window takes.
+     * @return The batch size.
+     */
+    public int getBatchSize() {
+        return viewXs.length;
+    }
+
+    @Override
+    public void update(int[] xs, int[] ys, long[] order, int count) {
+        for (int i = 0; i < count; i++) {
+            viewXs[i] = xs[i] + escapeCircleRadius + 4;
+            viewYs[i] = ys[i] + escapeCircleRadius + 4;
+        }
+        view.updateImage(viewXs, viewYs, count);
+    }
+
+    @Override
+    public void reset() {
+        view.resetImage();
+        view.updateImage(escapeCircleRadius + 4, escapeCircleRadius + 4);
+    }
+}
@@ -0,0 +1,287 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A growth engine that uses several threads but still grows exactly the same crystal as
+ * {@link CrystalModel#runSomeSteps(int)} does for the same seed.
+ * <p>
+ * Every ion gets its random generator from the seed of the model and the index of the ion, so
+ * its walk only depends on the crystal it walks against. The worker threads walk ions
+ * speculatively against the crystal as it is when they start, without changing it, and the
+ * ions are then crystallized strictly in index order. Before an ion is crystallized its walk
+ * is checked against the cells that were crystallized after it started: the walk is replayed
+ * from the seed, which only costs the random numbers, and if it passed next to one of those
+ * cells the real walk is resumed from that step against the current crystal. Also if the start
+ * circle has grown (extreme mode) the ion is walked again from the beginning. The checks are
+ * repeated while a worker waits for its turn, so only the last few cells have to be checked
+ * when it is time to crystallize.
+ * <p>
+ * The accelerated walk depends on the distance map rather than only on the crystal, so it
+ * cannot be replayed and is not supported by this engine.
+ */
+public class DeterministicGrowthEngine {
+
+    private final CrystalModel crystalModel;
+    private final int threads;
+
+    private final Object turn = new Object(); // monitor for workers waiting for new commits
+
+    // state of the current grow(), ion indices are counted from the first ion of the call
+    private long base;
+    private long ions;
+    private AtomicLong nextIon;
+    private volatile long committed;
+    private volatile boolean done;
+    private int[] cellX;
+    private int[] cellY;
+    private boolean[] hasCell;
+
+    /**
+     * Creates an engine for a model. The model must be seeded and should store its crystal
+     * in a ConcurrentBitLattice, since the workers read the crystal while it grows.
+     * @param crystalModel The model to grow.
+     * @param threads The number of worker threads.
+     */
+    public DeterministicGrowthEngine(CrystalModel crystalModel, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("There must be at least one thread!");
+        }
+        if (!crystalModel.isSeeded()) {
+            throw new IllegalArgumentException("The model must be created with a seed!");
+        }
+        this.crystalModel = crystalModel;
+        this.threads = threads;
+    }
+
+    /**
+     * Drops the given number of ions, like {@link CrystalModel#runSomeSteps(int)}, and
+     * crystallizes them in order using all worker threads.
+     * @param steps The number of ions to drop.
+     * @return "false" if the crystal is done, otherwise "true".
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    public boolean grow(int steps) throws InterruptedException {
+        if (crystalModel.isAcceleratedWalk()) {
+            throw new IllegalStateException("The accelerated walk cannot be grown deterministically!");
+        }
+        if (crystalModel.isAdaptiveRadii()) {
+            throw new IllegalStateException("The adaptive radii cannot be grown deterministically!");
+        }
+
+        base = crystalModel.getIonCount();
+        ions = Math.max(steps, 1);
+        nextIon = new AtomicLong();
+        committed = 0;
+        done = false;
+        cellX = new int[(int) ions];
+        cellY = new int[(int) ions];
+        hasCell = new boolean[(int) ions];
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::work, "crystal-worker-" + i);
+            workers[i].start();
+        }
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        crystalModel.setIonCount(base + committed);
+        crystalModel.flushUpdates();
+        return !done;
+    }
+
+    /**
+     * The loop of a worker thread: take the next ion, walk it speculatively, keep validating
+     * the walk against new commits until all earlier ions are crystallized, then commit it.
+     */
+    private void work() {
+        Ion ion = new Ion(new SplitMixRandom(0));
+
+        while (!done) {
+            long i = nextIon.getAndIncrement();
+            if (i >= ions)
+                return;
+
+            long seen = committed;
+            ion.index = base + i;
+            ion.random.setSeed(crystalModel.ionSeed(base + i));
+            crystalModel.dropNewIon(ion);
+            CrystalModel.Outcome outcome = crystalModel.walk(ion);
+
+            long validated = seen;
+            while (validated < i) {
+                long c;
+                synchronized (turn) {
+                    while ((c = committed) == validated && !done) {
+                        try {
+                            turn.wait();
+                        } catch (InterruptedException e) {
+                            done = true;
+                            turn.notifyAll();
+                            return;
+                        }
+                    }
+                }
+                if (done)
+                    return;
+
+                outcome = validate(ion, i, outcome, seen, c);
+                validated = c;
+            }
+
+            commit(i, ion, outcome);
+        }
+    }
+
+    /**
+     * Replays the walk of an ion and checks it against the cells crystallized by the ions
+     * seen to c-1, which the ion may have missed. At the first step where it passes next to
+     * one of them the walk is resumed from there against the current crystal.
+     * @param ion The ion, at the end of its walk.
+     * @param i The index of the ion.
+     * @param outcome How the walk ended.
+     * @param seen The number of ions that were committed when the walk started.
+     * @param c The number of ions committed now.
+     * @return How the (possibly resumed) walk ended.
+     */
+    private CrystalModel.Outcome validate(Ion ion, long i, CrystalModel.Outcome outcome, long seen, long c) {
+        int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+        int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+        for (long j = seen; j < c; j++) {
+            int k = (int) j;
+            if (!hasCell[k]) continue;
+            minX = Math.min(minX, cellX[k] - 1);
+            maxX = Math.max(maxX, cellX[k] + 1);
+            minY = Math.min(minY, cellY[k] - 1);
+            maxY = Math.max(maxY, cellY[k] + 1);
+        }
+        if (minX > maxX)
+            return outcome; // only escaped ions were committed
+
+        int endX = ion.x;
+        int endY = ion.y;
+        long moves = outcome == CrystalModel.Outcome.ESCAPED ? ion.steps - 1 : ion.steps;
+        int launchRadius = ion.launchRadius;
+        boolean radiusChanged = ion.radiusChanged;
+
+        ion.random.setSeed(crystalModel.ionSeed(base + i));
+        crystalModel.dropNewIon(ion);
+        if (radiusChanged || ion.launchRadius != launchRadius)
+            return crystalModel.walk(ion);
+
+        int escapeCircleRadius = crystalModel.getEscapeCircleRadius();
+        while (ion.steps < moves) {
+            if (ion.x >= minX && ion.x <= maxX && ion.y >= minY && ion.y <= maxY
+                    && touches(ion.x, ion.y, seen, c, true))
+                return crystalModel.walk(ion);
+
+            ion.steps++;
+
+            if (CrystalModel.outsideCicle(escapeCircleRadius, ion.x, ion.y)) {
+                crystalModel.reinject(ion);
+                if (ion.radiusChanged) {
+                    ion.random.setSeed(crystalModel.ionSeed(base + i));
+                    crystalModel.dropNewIon(ion);
+                    return crystalModel.walk(ion);
+                }
+                continue;
+            }
+
+            crystalModel.step(ion);
+        }
+
+        ion.x = endX;
+        ion.y = endY;
+        if (outcome == CrystalModel.Outcome.ESCAPED) {
+            ion.steps = moves;
+            if (touches(endX, endY, seen, c, true))
+                return crystalModel.walk(ion);
+            ion.steps = moves + 1;
+        } else if (outcome == CrystalModel.Outcome.STUCK && touches(endX, endY, seen, c, false)) {
+            return crystalModel.walk(ion);
+        }
+        return outcome;
+    }
+
+    /**
+     * Checks whether a position is on, or next to, a cell crystallized by the ions seen to c-1.
+     * @param x The x-coordinate in the bath.
+     * @param y The y-coordinate in the bath.
+     * @param seen The first ion to check.
+     * @param c The ion after the last one to check.
+     * @param neighbours "true" if a neighbouring cell counts as well.
+     * @return "true" if the position touches one of the cells.
+     */
+    private boolean touches(int x, int y, long seen, long c, boolean neighbours) {
+        for (long j = seen; j < c; j++) {
+            int k = (int) j;
+            if (!hasCell[k]) continue;
+            int distance = Math.abs(cellX[k] - x) + Math.abs(cellY[k] - y);
+            if (distance == 0 || (neighbours && distance == 1))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Crystallizes an ion whose walk is valid against all earlier ions and lets the next ion
+     * go. Only the worker holding ion committed can get here, so commits never overlap.
+     * @param i The index of the ion.
+     * @param ion The ion.
+     * @param outcome How the walk ended.
+     */
+    private void commit(long i, Ion ion, CrystalModel.Outcome outcome) {
+        if (outcome == CrystalModel.Outcome.STUCK)
+            outcome = crystalModel.crystallize(ion);
+        crystalModel.recordIon(ion, outcome);
+
+        int k = (int) i;
+        if (outcome == CrystalModel.Outcome.STUCK || outcome == CrystalModel.Outcome.COMPLETE) {
+            cellX[k] = ion.x;
+            cellY[k] = ion.y;
+            hasCell[k] = true;
+        }
+
+        synchronized (turn) {
+            if (outcome == CrystalModel.Outcome.COMPLETE || outcome == CrystalModel.Outcome.LOST)
+                done = true;
+            committed = i + 1;
+            turn.notifyAll();
+        }
+    }
+
+    /**
+     * Grows the same crystal sequentially and with the engine and checks that they are equal.
+     * @param args Optionally the size of the bath, the seed, the number of ions and the number
+     * of threads (default 400, 1, 20000 and the number of available processors).
+     * @throws InterruptedException If the main thread is interrupted.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        int ions = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        CrystalModel sequential = new CrystalModel(new ConcurrentBitLattice(size), seed);
+        long start = System.nanoTime();
+        sequential.runSomeSteps(ions);
+        double sequentialTime = (System.nanoTime() - start) / 1e9;
+
+        CrystalModel parallel = new CrystalModel(new ConcurrentBitLattice(size), seed);
+        start = System.nanoTime();
+        new DeterministicGrowthEngine(parallel, threads).grow(ions);
+        double parallelTime = (System.nanoTime() - start) / 1e9;
+
+        int r = sequential.getEscapeCircleRadius();
+        boolean equal = sequential.getIonCount() == parallel.getIonCount();
+        for (int x = -r; x < r && equal; x++) {
+            for (int y = -r; y < r && equal; y++) {
+                equal = sequential.getModelValue(x, y) == parallel.getModelValue(x, y);
+            }
+        }
+
+        System.out.printf("sequential %.2f s, %d threads %.2f s, equal: %b%n",
+                sequentialTime, threads, parallelTime, equal);
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.Arrays;
+
+/**
+ * A coarse distance-to-cluster field for the lattice. The lattice is divided into blocks of
+ * BLOCK_SIZE*BLOCK_SIZE cells and for every block the map stores the distance, counted in
+ * blocks (Chebyshev distance), to the nearest block that contains a crystallized cell.
+ * <p>
+ * The field is updated incrementally: only the first crystallized cell in a block changes
+ * anything, and then only the blocks within MAX_DISTANCE of it. The distances are stored in
+ * tiles of TILE_SIZE*TILE_SIZE blocks that are allocated the first time a block in them gets
+ * closer than MAX_DISTANCE, so the map stays small for sparse lattices too.
+ */
+public class DistanceMap {
+
+    private static final int BLOCK_SHIFT = 3;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    private static final int MAX_DISTANCE = 16; // distances are capped, farther blocks just read as MAX_DISTANCE
+
+    private static final int TILE_SHIFT = 6;
+    private static final int TILE_MASK = (1 << TILE_SHIFT) - 1;
+
+    private final int blocksPerRow;
+    private final int tilesPerRow;
+    private final byte[][] tiles; // null tiles are all MAX_DISTANCE
+
+    /**
+     * Creates a distance map for a lattice of size*size cells where nothing has crystallized.
+     * @param size The width and height of the lattice.
+     */
+    public DistanceMap(int size) {
+        this.blocksPerRow = (size >> BLOCK_SHIFT) + 1;
+        this.tilesPerRow = (blocksPerRow >> TILE_SHIFT) + 1;
+        this.tiles = new byte[tilesPerRow * tilesPerRow][];
+    }
+
+    /**
+     * Resets the map so that every block is as far from the cluster as the map can tell.
+     */
+    public void clear() {
+        Arrays.fill(tiles, null);
+    }
+
+    /**
+     * Updates the map after the cell at col,row has crystallized. This is synchronized since
+     * two concurrent updates could otherwise overwrite a smaller distance with a larger one.
+     * Reads are not synchronized, a stale value only makes a walker jump slightly too far.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     */
+    public synchronized void markOccupied(int col, int row) {
+        int bx = col >> BLOCK_SHIFT;
+        int by = row >> BLOCK_SHIFT;
+        if (distance(bx, by) == 0) return;
+
+        int minX = Math.max(bx - MAX_DISTANCE + 1, 0);
+        int maxX = Math.min(bx + MAX_DISTANCE - 1, blocksPerRow - 1);
+        int minY = Math.max(by - MAX_DISTANCE + 1, 0);
+        int maxY = Math.min(by + MAX_DISTANCE - 1, blocksPerRow - 1);
+
+        for (int j = minY; j <= maxY; j++) {
+            int dy = Math.abs(j - by);
+            for (int i = minX; i <= maxX; i++) {
+                int d = Math.max(Math.abs(i - bx), dy);
+                byte[] tile = tile(i, j);
+                int index = ((j & TILE_MASK) << TILE_SHIFT) | (i & TILE_MASK);
+                if (d < tile[index]) tile[index] = (byte) d;
+            }
+        }
+    }
+
+    /**
+     * Gives a lower bound of the (euclidean) distance from the cell at col,row to the nearest
+     * crystallized cell. If the nearest occupied block is k blocks away, then every block
+     * within k-1 is empty and so is every cell within (k-1)*BLOCK_SIZE of col,row.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return The distance in cells that is guaranteed to be free from crystallized cells.
+     */
+    public int clearance(int col, int row) {
+        int k = distance(col >> BLOCK_SHIFT, row >> BLOCK_SHIFT);
+        return k == 0 ? 0 : (k - 1) << BLOCK_SHIFT;
+    }
+
+    /**
+     * Reads the distance of a block.
+     * @param bx The column of the block.
+     * @param by The row of the block.
+     * @return The distance in blocks, at most MAX_DISTANCE.
+     */
+    private int distance(int bx, int by) {
+        byte[] tile = tiles[(by >> TILE_SHIFT) * tilesPerRow + (bx >> TILE_SHIFT)];
+        return tile == null ? MAX_DISTANCE : tile[((by & TILE_MASK) << TILE_SHIFT) | (bx & TILE_MASK)];
+    }
+
+    /**
+     * Looks up the tile holding a block and allocates it if it does not exist.
+     * @param bx The column of the block.
+     * @param by The row of the block.
+     * @return The tile.
+     */
+    private byte[] tile(int bx, int by) {
+        int index = (by >> TILE_SHIFT) * tilesPerRow + (bx >> TILE_SHIFT);
+        byte[] tile = tiles[index];
+        if (tile == null) {
+            tile = new byte[1 << (2 * TILE_SHIFT)];
+            Arrays.fill(tile, (byte) MAX_DISTANCE);
+            tiles[index] = tile;
+        }
+        return tile;
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A headless runner that grows many independent crystals in parallel, one CrystalModel per run,
+ * over a grid of sizes, extreme mode and adaptive radii settings. The runs are scheduled on a work-stealing
+ * pool and every run is written as a line of CSV as soon as it finishes. To bound the memory,
+ * a run has to reserve the memory of its lattice before it starts, so only as many large
+ * lattices as fit in the budget are live at once.
+ * <p>
+ * Usage: java EnsembleRunner [sizes=200,400] [extreme=true,false] [adaptive=false] [runs=10] [seed=1]
+ * [threads=cores] [memory=1024 (MB)] [out=ensemble.csv]
+ * <p>
+ * The column stepsPerParticle is the number of moves walked for every crystallized cell, which is
+ * what the adaptive radii save early in the growth.
+ */
+public class EnsembleRunner {
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private final int[] sizes;
+    private final boolean[] extremeModes;
+    private final boolean[] adaptiveRadii;
+    private final int runs;
+    private final long seed;
+    private final int threads;
+    private final Semaphore memory;
+    private final int memoryBudget; // in MB
+
+    private PrintWriter out;
+
+    /**
+     * Creates a runner for a grid of runs.
+     * @param sizes The sizes of the baths.
+     * @param extremeModes The extreme mode settings.
+     * @param adaptiveRadii The adaptive radii settings.
+     * @param runs The number of runs for every combination of size, extreme mode and adaptive radii.
+     * @param seed The seed of the first run, the following runs use seed+1, seed+2 and so on.
+     * @param threads The number of worker threads.
+     * @param memoryBudget The memory, in MB, that the lattices of the live runs may use.
+     */
+    public EnsembleRunner(int[] sizes, boolean[] extremeModes, boolean[] adaptiveRadii, int runs, long seed, int threads, int memoryBudget) {
+        if (runs < 0 || threads < 1 || memoryBudget < 1) {
+            throw new IllegalArgumentException("Runs, threads and memory must be positive!");
+        }
+        this.sizes = sizes;
+        this.extremeModes = extremeModes;
+        this.adaptiveRadii = adaptiveRadii;
+        this.runs = runs;
+        this.seed = seed;
+        this.threads = threads;
+        this.memoryBudget = memoryBudget;
+        this.memory = new Semaphore(memoryBudget, true);
+    }
+
+    /**
+     * Runs the whole grid and writes one CSV line per run to out. Larger baths are scheduled
+     * first so that the long runs do not end up last.
+     * @param out Where the CSV is written, it is flushed after every line.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    public void run(PrintWriter out) throws InterruptedException {
+        this.out = out;
+        out.println("size,extremeMode,adaptiveRadii,seed,particles,radius,ions,walkSteps,stepsPerParticle,wallTimeMs,"
+                + "radiusOfGyration,fractalDimension");
+        out.flush();
+
+        int[] bySize = sizes.clone();
+        Arrays.sort(bySize);
+
+        ExecutorService pool = Executors.newWorkStealingPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long runSeed = seed;
+        for (int i = bySize.length - 1; i >= 0; i--) {
+            int size = bySize[i];
+            for (boolean extremeMode : extremeModes) {
+                for (boolean adaptive : adaptiveRadii) {
+                    for (int j = 0; j < runs; j++) {
+                        long s = runSeed++;
+                        futures.add(pool.submit(() -> runOne(size, extremeMode, adaptive, s)));
+                    }
+                }
+            }
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Grows one crystal until it reaches the start circle and writes the result.
+     * @param size The size of the bath.
+     * @param extremeMode The extreme mode setting.
+     * @param adaptive The adaptive radii setting.
+     * @param runSeed The seed of the run.
+     */
+    private void runOne(int size, boolean extremeMode, boolean adaptive, long runSeed) {
+        int permits = (int) Math.min(memoryBudget, Math.max(1, latticeBytes(size) / MEGABYTE));
+        memory.acquireUninterruptibly(permits);
+        try {
+            long start = System.nanoTime();
+
+            CrystalModel model = new CrystalModel(size, runSeed);
+            if (!extremeMode)
+                model.toggleExtremeMode();
+            if (adaptive)
+                model.toggleAdaptiveRadii();
+            while (model.runSomeSteps(1000)) {
+                // grow until the crystal reaches the start circle
+            }
+
+            long wallTime = (System.nanoTime() - start) / 1000000;
+            synchronized (this) {
+                GrowthStatistics statistics = model.getStatistics();
+                out.printf(Locale.ROOT, "%d,%b,%b,%d,%d,%d,%d,%d,%.1f,%d,%.3f,%.4f%n", size, extremeMode, adaptive, runSeed,
+                        model.getParticleCount(), model.getCurrentRadius(), model.getIonCount(), model.getWalkSteps(),
+                        (double) model.getWalkSteps() / model.getParticleCount(), wallTime,
+                        statistics.getRadiusOfGyration(), statistics.getFractalDimension());
+                out.flush();
+            }
+        } finally {
+            memory.release(permits);
+        }
+    }
+
+    /**
+     * Estimates the memory used by the lattices and distance map of a CrystalModel: the crystal, the
+     * stop layer of the same size and the distance map.
+     * @param size The size of the bath.
+     * @return The number of bytes.
+     */
+    private static long latticeBytes(int size) {
+        long lattice = (long) ((size >>> 6) + 1) * (size + 2) * 8;
+        long distanceMap = (long) ((size >> 3) + 1) * ((size >> 3) + 1);
+        return 2 * lattice + distanceMap;
+    }
+
+    /**
+     * Parses the options, see the class comment, and runs the grid.
+     * @param args The options as name=value.
+     * @throws IOException If the CSV file cannot be written.
+     * @throws InterruptedException If the main thread is interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int[] sizes = {200, 400};
+        boolean[] extremeModes = {true, false};
+        boolean[] adaptiveRadii = {false};
+        int runs = 10;
+        long seed = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int memoryBudget = 1024;
+        String file = "ensemble.csv";
+
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Options are given as name=value: " + arg);
+            }
+            switch (option[0]) {
+                case "sizes":
+                    String[] s = option[1].split(",");
+                    sizes = new int[s.length];
+                    for (int i = 0; i < s.length; i++) sizes[i] = Integer.parseInt(s[i].trim());
+                    break;
+                case "extreme":
+                    String[] e = option[1].split(",");
+                    extremeModes = new boolean[e.length];
+                    for (int i = 0; i < e.length; i++) extremeModes[i] = Boolean.parseBoolean(e[i].trim());
+                    break;
+                case "adaptive":
+                    String[] a = option[1].split(",");
+                    adaptiveRadii = new boolean[a.length];
+                    for (int i = 0; i < a.length; i++) adaptiveRadii[i] = Boolean.parseBoolean(a[i].trim());
+                    break;
+                case "runs":
+                    runs = Integer.parseInt(option[1]);
+                    break;
+                case "seed":
+                    seed = Long.parseLong(option[1]);
+                    break;
+                case "threads":
+                    threads = Integer.parseInt(option[1]);
+                    break;
+                case "memory":
+                    memoryBudget = Integer.parseInt(option[1]);
+                    break;
+                case "out":
+                    file = option[1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + option[0]);
+            }
+        }
+
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            new EnsembleRunner(sizes, extremeModes, adaptiveRadii, runs, seed, threads, memoryBudget).run(out);
+        }
+    }
+}
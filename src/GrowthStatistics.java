@@ -0,0 +1,178 @@
+import java.util.Arrays;
+
+/**
+ * Statistics of a crystal that are kept up to date as every ion crystallizes, so they can be read
+ * at any time without scanning the lattice: the radius of gyration, the mass-radius curve and the
+ * fractal dimension fitted to it. Adding a cell costs O(1); the queries cost O(number of shells),
+ * which is a few hundred at most.
+ * <p>
+ * The mass-radius curve counts the cells in shells around the first cell whose outer radii grow
+ * geometrically, BINS_PER_OCTAVE shells for every doubling of the radius. Shell 0 holds the cells
+ * closer than 1 to the middle and shell k the cells from 2^((k-1)/8) up to 2^(k/8).
+ * <p>
+ * All methods are synchronized, since the cells may be added by several threads of a growth
+ * engine while another thread polls the statistics.
+ */
+public class GrowthStatistics {
+
+    static final int BINS_PER_OCTAVE = 8;
+    private static final int SHELLS = 32 * BINS_PER_OCTAVE + 1; // radii up to 2^32
+
+    private static final double MIN_FIT_RADIUS = 4; // smaller shells are dominated by the lattice
+    private static final double MAX_FIT_FRACTION = 0.5; // larger shells are still growing
+
+    private long count;
+    private double sumX;
+    private double sumY;
+    private double sumSquares; // sum of x*x + y*y
+    private double maxRadius;
+    private final long[] shells = new long[SHELLS];
+    private int outerShell; // the outermost shell that has a cell
+
+    /**
+     * Adds a crystallized cell.
+     * @param x The x-coordinate (in bath-coordinates) of the cell.
+     * @param y The y-coordinate (in bath-coordinates) of the cell.
+     */
+    synchronized void add(int x, int y) {
+        add((double) x, (double) y);
+    }
+
+    /**
+     * Adds a particle at any point, e.g. of an OffLatticeModel.
+     * @param x The x-coordinate (in bath-coordinates) of the centre of the particle.
+     * @param y The y-coordinate (in bath-coordinates) of the centre of the particle.
+     */
+    synchronized void add(double x, double y) {
+        double squared = x * x + y * y;
+        double radius = Math.sqrt(squared);
+
+        count++;
+        sumX += x;
+        sumY += y;
+        sumSquares += squared;
+        maxRadius = Math.max(maxRadius, radius);
+
+        int shell = shell(radius);
+        shells[shell]++;
+        outerShell = Math.max(outerShell, shell);
+    }
+
+    /**
+     * Forgets all cells.
+     */
+    synchronized void clear() {
+        count = 0;
+        sumX = 0;
+        sumY = 0;
+        sumSquares = 0;
+        maxRadius = 0;
+        Arrays.fill(shells, 0L);
+        outerShell = 0;
+    }
+
+    /**
+     * Getter for the number of cells added.
+     * @return The number of cells.
+     */
+    public synchronized long getParticleCount() {
+        return count;
+    }
+
+    /**
+     * Getter for the distance of the farthest cell from the middle of the bath.
+     * @return The largest radius of a cell.
+     */
+    public synchronized double getMaxRadius() {
+        return maxRadius;
+    }
+
+    /**
+     * Calculates the radius of gyration, the root mean square distance of the cells from their
+     * centre of mass.
+     * @return The radius of gyration, 0 when there are no cells.
+     */
+    public synchronized double getRadiusOfGyration() {
+        if (count == 0)
+            return 0;
+
+        double meanX = sumX / count;
+        double meanY = sumY / count;
+        return Math.sqrt(Math.max(0, sumSquares / count - meanX * meanX - meanY * meanY));
+    }
+
+    /**
+     * Returns the mass-radius curve: element k is the number of cells closer to the middle than
+     * {@link GrowthStatistics#shellRadius(int)} of k. The curve ends with the outermost shell that has a cell.
+     * @return A new array with the cumulative number of cells per shell.
+     */
+    public synchronized long[] getMassRadiusCurve() {
+        long[] curve = new long[outerShell + 1];
+        long mass = 0;
+        for (int k = 0; k <= outerShell; k++) {
+            mass += shells[k];
+            curve[k] = mass;
+        }
+        return curve;
+    }
+
+    /**
+     * Fits the fractal dimension D to the mass-radius curve, N(r) ~ r^D, by a least squares fit of
+     * log N against log r. Only the shells from radius 4 up to half the radius of the crystal are
+     * used, since the inner ones follow the lattice and the outer ones are still growing.
+     * @return The fractal dimension, or NaN while the crystal is too small for a fit.
+     */
+    public synchronized double getFractalDimension() {
+        double limit = MAX_FIT_FRACTION * maxRadius;
+        double n = 0, sx = 0, sy = 0, sxx = 0, sxy = 0;
+        long mass = 0;
+
+        for (int k = 0; k <= outerShell; k++) {
+            mass += shells[k];
+            double r = shellRadius(k);
+            if (r < MIN_FIT_RADIUS || mass == 0)
+                continue;
+            if (r > limit)
+                break;
+
+            double lx = Math.log(r);
+            double ly = Math.log(mass);
+            n++;
+            sx += lx;
+            sy += ly;
+            sxx += lx * lx;
+            sxy += lx * ly;
+        }
+
+        if (n < 3)
+            return Double.NaN;
+        return (n * sxy - sx * sy) / (n * sxx - sx * sx);
+    }
+
+    /**
+     * Calculates the outer radius of a shell of the mass-radius curve.
+     * @param shell The index of the shell.
+     * @return The radius, 2^(shell/8).
+     */
+    public static double shellRadius(int shell) {
+        return Math.pow(2, (double) shell / BINS_PER_OCTAVE);
+    }
+
+    /**
+     * Finds the shell of a radius.
+     * @param radius The distance from the middle.
+     * @return The index of the shell.
+     */
+    private static int shell(double radius) {
+        if (radius < 1)
+            return 0;
+        int shell = (int) (BINS_PER_OCTAVE * Math.log(radius) / Math.log(2)) + 1;
+        return Math.min(shell, SHELLS - 1);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("particles=%d, maxRadius=%.1f, radiusOfGyration=%.2f, fractalDimension=%.3f",
+                count, maxRadius, getRadiusOfGyration(), getFractalDimension());
+    }
+}
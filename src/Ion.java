@@ -0,0 +1,26 @@
+/**
+ * The state of one walking ion: its position in bath coordinates, where 0,0 is in the middle,
+ * the random generator that drives its walk and some bookkeeping about the walk. The fields are
+ * only ever touched by the CrystalModel that walks the ion, so every thread that walks ions
+ * needs an Ion of its own.
+ */
+public class Ion {
+
+    int x; // xBath
+    int y; // yBath
+
+    long steps; // number of moves since the ion was dropped
+    long index = -1; // index of the ion since the last reset, see CrystalModel#getIonCount(), -1 if not known
+    int launchRadius; // the start radius the ion was dropped on
+    boolean radiusChanged; // "true" if the ion was reinjected on another radius than launchRadius
+
+    final WalkRandom random;
+
+    /**
+     * Creates an ion in the middle of the bath.
+     * @param random The random generator that drives the walk of the ion.
+     */
+    public Ion(WalkRandom random) {
+        this.random = random;
+    }
+}
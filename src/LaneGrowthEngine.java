@@ -0,0 +1,207 @@
+/**
+ * A growth engine that walks many ions at once on a single thread. The ions are kept as a structure
+ * of arrays, their columns and rows in int arrays, and the engine takes one step with every ion in
+ * turn. The walks are independent, so the processor can have the lattice reads of many ions in
+ * flight at the same time instead of waiting for one ion's read before the next step. The step
+ * directions of 32 ions come from a single 64-bit random draw.
+ * <p>
+ * An ion only leaves the tight loop when it stands on a cell of the stop layer of the model; then
+ * it is handled exactly like in {@link CrystalModel#walk(Ion)}: it crystallizes, escapes, is
+ * reinjected or is lost, and a new ion is dropped in its lane. Ions that get stuck in the same
+ * round crystallize in lane order.
+ * <p>
+ * Like with the ParallelGrowthEngine, several ions walk at once, so an ion may walk past cells that
+ * crystallize while it walks; the crystal is statistically the same, but not the same as a seeded
+ * sequential growth. The accelerated walk is not supported, since a jump is decided per ion.
+ */
+public class LaneGrowthEngine {
+
+    // the moves of the four directions in model representation, as in CrystalModel.step()
+    private static final int[] COLUMN_MOVE = {1, -1, 0, 0};
+    private static final int[] ROW_MOVE = {0, 0, -1, 1};
+
+    private final CrystalModel crystalModel;
+    private final int lanes;
+
+    private final int[] cols;
+    private final int[] rows;
+    private final long[] steps;
+    private final Ion[] ions; // the ions of the lanes, only up to date while they are handled by the model
+
+    private final WalkRandom random = new SplitMixRandom();
+    private boolean complete = false;
+
+    /**
+     * Creates an engine for a model.
+     * @param crystalModel The model to grow.
+     * @param lanes The number of ions walking at once, e.g. 32.
+     */
+    public LaneGrowthEngine(CrystalModel crystalModel, int lanes) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("There must be at least one lane!");
+        }
+        this.crystalModel = crystalModel;
+        this.lanes = lanes;
+        this.cols = new int[lanes];
+        this.rows = new int[lanes];
+        this.steps = new long[lanes];
+        this.ions = new Ion[lanes];
+        for (int l = 0; l < lanes; l++) {
+            ions[l] = new Ion(random.split());
+        }
+    }
+
+    /**
+     * Checks whether the crystal has reached the start circle.
+     * @return "true" when the crystal is done.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Grows the crystal until the given number of ions have crystallized or the crystal is complete.
+     * The ions that are still walking when it returns are dropped.
+     * @param target The number of ions to crystallize.
+     * @return The number of ions that crystallized.
+     */
+    public long grow(long target) {
+        if (crystalModel.isAcceleratedWalk()) {
+            throw new IllegalStateException("The lane engine does not support the accelerated walk!");
+        }
+
+        Lattice stopRep = crystalModel.getStopLattice();
+        int offset = crystalModel.getEscapeCircleRadius() + 4;
+        long ionIndex = crystalModel.getIonCount();
+        long crystallized = 0;
+
+        for (int l = 0; l < lanes; l++) {
+            ionIndex = launch(l, ionIndex, offset);
+        }
+
+        while (!complete && crystallized < target) {
+            for (int first = 0; first < lanes; first += 32) {
+                long directions = random.nextLong();
+                int last = Math.min(lanes, first + 32);
+
+                for (int l = first; l < last; l++, directions >>>= 2) {
+                    int col = cols[l];
+                    int row = rows[l];
+                    int direction = (int) directions & 3;
+
+                    if (!stopRep.get(col, row)) {
+                        steps[l]++;
+                        cols[l] = col + COLUMN_MOVE[direction];
+                        rows[l] = row + ROW_MOVE[direction];
+                        continue;
+                    }
+
+                    CrystalModel.Outcome outcome = stop(l, direction, offset);
+                    if (outcome == null)
+                        continue;
+
+                    if (outcome == CrystalModel.Outcome.STUCK || outcome == CrystalModel.Outcome.COMPLETE)
+                        crystallized++;
+                    if (outcome == CrystalModel.Outcome.COMPLETE) {
+                        complete = true;
+                        break;
+                    }
+                    ionIndex = launch(l, ionIndex, offset);
+                }
+                if (complete || crystallized >= target)
+                    break;
+            }
+        }
+
+        crystalModel.setIonCount(ionIndex);
+        crystalModel.flushUpdates();
+        return crystallized;
+    }
+
+    /**
+     * Handles the ion of a lane that stands on the stop layer, in the same order as CrystalModel.walk().
+     * @param l The lane.
+     * @param direction The direction of the step, if the ion takes one.
+     * @param offset The offset between bath-coordinates and model representation.
+     * @return How the walk of the ion ended, or null if it walks on.
+     */
+    private CrystalModel.Outcome stop(int l, int direction, int offset) {
+        Ion ion = ions[l];
+        ion.x = cols[l] - offset;
+        ion.y = offset - rows[l];
+        ion.steps = steps[l];
+
+        CrystalModel.Outcome outcome = null;
+        if (crystalModel.getModelValue(ion.x, ion.y)) {
+            outcome = CrystalModel.Outcome.LOST;
+        } else if (crystalModel.anyNeighbours(ion.x, ion.y)) {
+            outcome = crystalModel.crystallize(ion);
+        } else {
+            ion.steps++;
+            steps[l] = ion.steps;
+
+            if (CrystalModel.outsideCicle(crystalModel.killRadius(), ion.x, ion.y)) {
+                if (!crystalModel.isReinjecting()) {
+                    outcome = CrystalModel.Outcome.ESCAPED;
+                } else {
+                    crystalModel.reinject(ion);
+                    cols[l] = ion.x + offset;
+                    rows[l] = offset - ion.y;
+                }
+            } else {
+                cols[l] += COLUMN_MOVE[direction];
+                rows[l] += ROW_MOVE[direction];
+            }
+        }
+
+        if (outcome != null)
+            crystalModel.recordIon(ion, outcome);
+        return outcome;
+    }
+
+    /**
+     * Drops a new ion in a lane.
+     * @param l The lane.
+     * @param ionIndex The index of the new ion.
+     * @param offset The offset between bath-coordinates and model representation.
+     * @return The index of the next ion.
+     */
+    private long launch(int l, long ionIndex, int offset) {
+        Ion ion = ions[l];
+        ion.index = ionIndex;
+        crystalModel.dropNewIon(ion);
+        cols[l] = ion.x + offset;
+        rows[l] = offset - ion.y;
+        steps[l] = 0;
+        return ionIndex + 1;
+    }
+
+    /**
+     * Measures the growth rate of the lanes against crystallizeOneIon() on a single thread.
+     * @param args Optionally the size of the bath (default 2000) and the number of ions (default 20000).
+     */
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long ions = args.length > 1 ? Long.parseLong(args[1]) : 20000;
+
+        System.out.println("lanes\tions\tions/s\tspeedup");
+        CrystalModel model = new CrystalModel(size);
+        long start = System.nanoTime();
+        long grown = 0;
+        while (grown < ions && model.crystallizeOneIon()) {
+            grown = model.getParticleCount() - 1;
+        }
+        double base = grown / ((System.nanoTime() - start) / 1e9);
+        System.out.printf("scalar\t%d\t%.0f\t1.00%n", grown, base);
+
+        for (int lanes = 8; lanes <= 256; lanes *= 2) {
+            model = new CrystalModel(size);
+            LaneGrowthEngine engine = new LaneGrowthEngine(model, lanes);
+
+            start = System.nanoTime();
+            grown = engine.grow(ions);
+            double rate = grown / ((System.nanoTime() - start) / 1e9);
+            System.out.printf("%d\t%d\t%.0f\t%.2f%n", lanes, grown, rate, rate / base);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.Arrays;
+
+/**
+ * An interface for the lattice that stores which cells of the bath have crystallized.
+ * <p>
+ * All coordinates are given in model representation, i.e. a column and a row in the
+ * range 0 to size-1. The transformation from bath coordinates is done by {@link CrystalModel}.
+ */
+public interface Lattice {
+
+    /**
+     * Getter for the size (width and height) of the lattice.
+     * @return An int value representing the size of the lattice.
+     */
+    int getSize();
+
+    /**
+     * Checks whether the cell at col,row has crystallized.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return "true" if the cell has crystallized.
+     */
+    boolean get(int col, int row);
+
+    /**
+     * Marks the cell at col,row as crystallized.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     */
+    void set(int col, int row);
+
+    /**
+     * Marks the cell at col,row as crystallized, unless it already was. Implementations that
+     * can be shared between threads must do this atomically.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return "true" if the cell was marked by this call, "false" if it already was crystallized.
+     */
+    boolean trySet(int col, int row);
+
+    /**
+     * Checks whether any of the four neighbours of the cell at col,row have crystallized.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return "true" if at least one neighbour has crystallized.
+     */
+    boolean anyNeighbours(int col, int row);
+
+    /**
+     * Copies a row of the lattice as packed words: bit col & 63 of words[col >>> 6] is set if the
+     * cell at col,row has crystallized, the bits after the last column are 0. Implementations
+     * should copy their words directly, this default only goes through get().
+     * @param row The row to copy.
+     * @param words The array to fill, at least (size + 63) / 64 long.
+     */
+    default void getRow(int row, long[] words) {
+        int size = getSize();
+        Arrays.fill(words, 0, (size + 63) >>> 6, 0L);
+        for (int col = 0; col < size; col++) {
+            if (get(col, row))
+                words[col >>> 6] |= 1L << col;
+        }
+    }
+
+    /**
+     * Creates a new lattice of the same kind and size where nothing has crystallized.
+     * @return An empty lattice.
+     */
+    Lattice emptyCopy();
+
+    /**
+     * Clears every cell of the lattice. Implementations should reuse their storage
+     * rather than reallocating it.
+     */
+    void clear();
+}
@@ -0,0 +1,260 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A Lattice that lives in a memory-mapped file instead of on the heap, so that a long growth
+ * survives the JVM. The cells are packed as bits in the same layout as a {@link BitLattice}, after
+ * a small header where {@link CrystalModel#checkpoint()} stores the radii, the counters and the
+ * state of the random generator. A checkpoint is only a force() of the mapped pages, and a crystal
+ * is continued by opening the file again and passing the lattice to {@link CrystalModel#CrystalModel(MappedLattice)}.
+ * <p>
+ * The file can be opened by another process while a crystal grows in it, e.g. with main(), which
+ * sees the cells as they crystallize and the header as of the last checkpoint.
+ * <p>
+ * A MappedLattice is not thread-safe, like a BitLattice. The file is stored little-endian and
+ * must be smaller than 2 GB, i.e. the size can be at most about 130000.
+ */
+public class MappedLattice implements Lattice {
+
+    private static final long MAGIC = 0x31304C4154414C44L; // "DLALAT01" read little-endian
+
+    // the header, as indices of long values at the start of the file
+    static final int SIZE = 1;
+    static final int ESCAPE_RADIUS = 2;
+    static final int CURRENT_RADIUS = 3;
+    static final int PARTICLE_COUNT = 4;
+    static final int ION_COUNT = 5;
+    static final int WALK_STEPS = 6;
+    static final int LAST_X = 7;
+    static final int LAST_Y = 8;
+    static final int SEEDED = 9;
+    static final int SEED = 10;
+    static final int RANDOM_LENGTH = 11; // the number of values of the random state, 0 before the first checkpoint
+    static final int RANDOM_STATE = 12;
+    static final int MAX_RANDOM_LENGTH = 4;
+    private static final int HEADER_LONGS = RANDOM_STATE + MAX_RANDOM_LENGTH;
+
+    private final int size;
+    private final int wordsPerRow;
+    private final MappedByteBuffer buffer;
+    private final LongBuffer longs; // the header followed by the cells
+
+    /**
+     * Creates a new lattice file of size*size empty cells, replacing the file if it exists.
+     * @param file The file to create.
+     * @param size The width and height of the lattice.
+     * @throws IOException If the file cannot be created.
+     */
+    public MappedLattice(File file, int size) throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size cannot be negative!");
+        }
+        long bytes = fileLength(size);
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Size is too large for a mapped lattice!");
+        }
+        this.size = size;
+        this.wordsPerRow = (size >>> 6) + 1;
+        this.buffer = map(file, bytes, true);
+        this.longs = buffer.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+
+        clear();
+        for (int i = 0; i < HEADER_LONGS; i++) {
+            longs.put(i, 0L);
+        }
+        longs.put(SIZE, size);
+        longs.put(0, MAGIC);
+    }
+
+    /**
+     * Opens an existing lattice file, with the cells and the header as they were last written.
+     * @param file The file to open.
+     * @throws IOException If the file cannot be read or is not a lattice file.
+     */
+    public MappedLattice(File file) throws IOException {
+        this.buffer = map(file, -1, false);
+        this.longs = buffer.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+
+        if (longs.capacity() < HEADER_LONGS || longs.get(0) != MAGIC) {
+            throw new IOException(file + " is not a lattice file!");
+        }
+        long size = longs.get(SIZE);
+        if (size < 0 || size > Integer.MAX_VALUE || fileLength((int) size) != buffer.capacity()) {
+            throw new IOException(file + " has a damaged header!");
+        }
+        this.size = (int) size;
+        this.wordsPerRow = (this.size >>> 6) + 1;
+    }
+
+    /**
+     * Maps a file into memory. The channel can be closed right away, the mapping stays valid.
+     * @param file The file.
+     * @param length The length to give the file, or -1 to map it as it is.
+     * @param create Whether the file should be created (and truncated) first.
+     * @return The mapped file.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private static MappedByteBuffer map(File file, long length, boolean create) throws IOException {
+        if (!create && !file.isFile()) {
+            throw new IOException(file + " does not exist!");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            if (create) {
+                raf.setLength(0);
+                raf.setLength(length);
+            }
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, create ? length : channel.size());
+        }
+    }
+
+    /**
+     * Calculates the length of the file for a lattice, the header followed by the rows and the padding.
+     * @param size The width and height of the lattice.
+     * @return The length in bytes.
+     */
+    private static long fileLength(int size) {
+        return 8L * (HEADER_LONGS + (long) (size + 2) * ((size >>> 6) + 1));
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * The copy is an ordinary BitLattice on the heap, it is only used for state that can be
+     * rebuilt from the crystal, like the frontier of the model.
+     */
+    @Override
+    public Lattice emptyCopy() {
+        return new BitLattice(size);
+    }
+
+    @Override
+    public boolean get(int col, int row) {
+        return (longs.get(wordIndex(col, row)) & (1L << col)) != 0;
+    }
+
+    @Override
+    public void set(int col, int row) {
+        int i = wordIndex(col, row);
+        longs.put(i, longs.get(i) | 1L << col);
+    }
+
+    @Override
+    public boolean trySet(int col, int row) {
+        int i = wordIndex(col, row);
+        long word = longs.get(i);
+        long mask = 1L << col;
+
+        if ((word & mask) != 0)
+            return false;
+
+        longs.put(i, word | mask);
+        return true;
+    }
+
+    /**
+     * The same test as in BitLattice, on the mapped words.
+     */
+    @Override
+    public boolean anyNeighbours(int col, int row) {
+        int i = wordIndex(col, row);
+        long mask = 1L << col;
+
+        if (((longs.get(i - wordsPerRow) | longs.get(i + wordsPerRow)) & mask) != 0) return true;
+        if ((longs.get(i) & ((mask << 1) | (mask >>> 1))) != 0) return true;
+
+        int bit = col & 63;
+        if (bit == 0) return longs.get(i - 1) < 0;
+        if (bit == 63) return (longs.get(i + 1) & 1L) != 0;
+
+        return false;
+    }
+
+    @Override
+    public void getRow(int row, long[] words) {
+        int first = wordIndex(0, row);
+        for (int i = 0; i < (size + 63) >>> 6; i++) {
+            words[i] = longs.get(first + i);
+        }
+    }
+
+    /**
+     * Clears every cell, but not the header.
+     */
+    @Override
+    public void clear() {
+        for (int i = HEADER_LONGS; i < longs.capacity(); i++) {
+            longs.put(i, 0L);
+        }
+    }
+
+    /**
+     * Writes all changes of the cells and the header to the file.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Reads a value of the header.
+     * @param index The index of the value, e.g. MappedLattice.PARTICLE_COUNT.
+     * @return The value.
+     */
+    long getHeader(int index) {
+        return longs.get(index);
+    }
+
+    /**
+     * Writes a value of the header. It reaches the file with the next force().
+     * @param index The index of the value, e.g. MappedLattice.PARTICLE_COUNT.
+     * @param value The value.
+     */
+    void setHeader(int index, long value) {
+        longs.put(index, value);
+    }
+
+    /**
+     * Calculates the index of the word holding the cell at col,row, after the header and the
+     * padding row at the top. The bit within the word is col & 63.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return The index in the mapped words.
+     */
+    private int wordIndex(int col, int row) {
+        return HEADER_LONGS + (row + 1) * wordsPerRow + (col >>> 6);
+    }
+
+    /**
+     * Prints the header of a lattice file and the number of crystallized cells in it, also while
+     * another process is growing the crystal.
+     * @param args The name of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java MappedLattice <file>");
+            return;
+        }
+        MappedLattice lattice = new MappedLattice(new File(args[0]));
+
+        long cells = 0;
+        for (int i = HEADER_LONGS; i < lattice.longs.capacity(); i++) {
+            cells += Long.bitCount(lattice.longs.get(i));
+        }
+        System.out.println("size            " + lattice.getSize());
+        System.out.println("escape radius   " + lattice.getHeader(ESCAPE_RADIUS));
+        System.out.println("current radius  " + lattice.getHeader(CURRENT_RADIUS));
+        System.out.println("particles       " + lattice.getHeader(PARTICLE_COUNT) + " (" + cells + " cells now)");
+        System.out.println("ions            " + lattice.getHeader(ION_COUNT));
+        System.out.println("walk steps      " + lattice.getHeader(WALK_STEPS));
+        System.out.println("seed            " + (lattice.getHeader(SEEDED) != 0 ? Long.toString(lattice.getHeader(SEED)) : "none"));
+    }
+}
@@ -0,0 +1,334 @@
+/**
+ * A model of the bath without a lattice: the ions are discs of diameter 1 with continuous
+ * coordinates that walk as Brownian particles and stick as soon as they touch the crystal, so the
+ * crystal is not pulled towards the axes of a lattice. The API follows {@link CrystalModel}, with
+ * the same bath-coordinates, start circle and escape circle, so the crystal can be drawn by a
+ * CrystalView and analysed by GrowthStatistics in the same way.
+ * <p>
+ * The crystallized particles are kept in a {@link SpatialHash}, so the memory grows with the number
+ * of particles and not with the area of the bath. A walking ion takes the longest step that is sure
+ * to be free: a Brownian particle started in the middle of an empty circle leaves it at a uniformly
+ * distributed point, so a step of the free distance in a uniformly random direction is exact. Far
+ * from the crystal the free distance is the distance to the circle of the crystal, close to it the
+ * distance to the nearest particle. When less than MIN_STEP is free the ion steps MIN_STEP, and if a
+ * particle is in the way it stops where it touches it and crystallizes.
+ * <p>
+ * Ions are dropped just outside the crystal and an ion that wanders farther than KILL_FACTOR times
+ * that is moved back to the drop circle by the harmonic measure, as in
+ * {@link CrystalModel#reinject(Ion)}, so no walk is wasted. An OffLatticeModel is not thread-safe.
+ */
+public class OffLatticeModel {
+
+    private static final double DIAMETER = 1.0; // the distance between the centres of touching particles
+    private static final double MIN_STEP = 0.5; // the shortest step, DIAMETER + MIN_STEP must not exceed SpatialHash.CELL_SIZE
+    private static final double LAUNCH_MARGIN = 2.0; // the drop circle, outside the farthest particle
+    private static final double KILL_FACTOR = 2.0; // the kill circle, relative to the drop circle
+    private static final int SEARCH_RINGS = 4; // how far around a walking ion the nearest particle is looked for, in cells
+
+    private final int size;
+    private final int escapeCircleRadius;
+    private final int startCircleRadius;
+
+    private final SpatialHash particles = new SpatialHash();
+    private final GrowthStatistics statistics = new GrowthStatistics();
+    private double maxRadius; // the distance of the farthest particle centre from the middle
+
+    private final WalkRandom random = new SplitMixRandom();
+    private final double[] direction = new double[2]; // of the current move, reused so that a walk does not allocate
+    private final boolean seeded;
+    private final long seed;
+    private long ionCount = 0;
+    private long walkSteps = 0;
+
+    private BatchUpdateListener batchUpdateListener;
+    private int[] batchXs = new int[0];
+    private int[] batchYs = new int[0];
+    private long[] batchOrder = new long[0];
+    private int batchCount = 0;
+
+    /**
+     * Creates a model of the bath with a first particle in the middle.
+     * @param size The width of the bath, as for a CrystalModel.
+     */
+    public OffLatticeModel(int size) {
+        this(size, false, 0);
+    }
+
+    /**
+     * Creates a model of the bath where the walk of every ion is determined by a seed.
+     * @param size The width of the bath, as for a CrystalModel.
+     * @param seed The seed that the walks of the ions are derived from.
+     */
+    public OffLatticeModel(int size, long seed) {
+        this(size, true, seed);
+    }
+
+    private OffLatticeModel(int size, boolean seeded, long seed) {
+        if (size < 16) {
+            throw new IllegalArgumentException("The bath must be at least 16 wide!");
+        }
+        this.size = size;
+        this.escapeCircleRadius = size / 2 - 4;
+        this.startCircleRadius = escapeCircleRadius - (int) (0.1 * escapeCircleRadius);
+        this.seeded = seeded;
+        this.seed = seed;
+        reset();
+    }
+
+    /**
+     * Removes the crystal and puts a first particle in the middle of the bath.
+     */
+    public void reset() {
+        particles.clear();
+        statistics.clear();
+        particles.add(0, 0);
+        statistics.add(0.0, 0.0);
+        maxRadius = 0;
+        ionCount = 0;
+        walkSteps = 0;
+
+        batchCount = 0;
+        if (batchUpdateListener != null)
+            batchUpdateListener.reset();
+    }
+
+    /**
+     * Getter for the width of the bath.
+     * @return The size.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Getter for the escape radius, as in CrystalModel.
+     * @return The radius of the escape circle.
+     */
+    public int getEscapeCircleRadius() {
+        return escapeCircleRadius;
+    }
+
+    /**
+     * Getter for the number of crystallized particles, including the one in the middle.
+     * @return The number of particles.
+     */
+    public long getParticleCount() {
+        return particles.size();
+    }
+
+    /**
+     * Getter for the distance of the farthest particle from the middle of the bath.
+     * @return The radius of the crystal.
+     */
+    public double getMaxRadius() {
+        return maxRadius;
+    }
+
+    /**
+     * Getter for the x-coordinate (in bath-coordinates) of a particle.
+     * @param i The index of the particle, in the order they crystallized.
+     * @return The x-coordinate of its centre.
+     */
+    public double getX(int i) {
+        return particles.getX(i);
+    }
+
+    /**
+     * Getter for the y-coordinate (in bath-coordinates) of a particle.
+     * @param i The index of the particle, in the order they crystallized.
+     * @return The y-coordinate of its centre.
+     */
+    public double getY(int i) {
+        return particles.getY(i);
+    }
+
+    /**
+     * Getter for the number of ions dropped since the last reset.
+     * @return The number of ions.
+     */
+    public long getIonCount() {
+        return ionCount;
+    }
+
+    /**
+     * Getter for the number of moves of all ions since the last reset. A move is a step of any length.
+     * @return The number of moves.
+     */
+    public long getWalkSteps() {
+        return walkSteps;
+    }
+
+    /**
+     * Getter for the statistics of the crystal, which are kept up to date as it grows.
+     * @return The statistics.
+     */
+    public GrowthStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Sets a listener that gets the crystallized particles in batches, rounded to the nearest cell
+     * in bath-coordinates, like the listener of a CrystalModel. A batch is delivered when it is full
+     * and at the end of runSomeSteps().
+     * @param listener The listener, or null to remove it.
+     * @param batchSize The largest number of particles in a batch.
+     */
+    public void setBatchUpdateListener(BatchUpdateListener listener, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive!");
+        }
+        flushUpdates();
+        batchUpdateListener = listener;
+        batchXs = new int[batchSize];
+        batchYs = new int[batchSize];
+        batchOrder = new long[batchSize];
+        batchCount = 0;
+    }
+
+    /**
+     * Delivers the particles that crystallized since the last batch to the listener.
+     */
+    public void flushUpdates() {
+        if (batchUpdateListener != null && batchCount > 0)
+            batchUpdateListener.update(batchXs, batchYs, batchOrder, batchCount);
+        batchCount = 0;
+    }
+
+    /**
+     * Drops a new ion and lets it walk until it crystallizes.
+     * @return "false" when the crystal is done (i.e. the last particle crystallized on the start
+     * circle) and "true" if more ions can crystallize.
+     */
+    public boolean crystallizeOneIon() {
+        if (seeded)
+            random.setSeed(WalkRandom.ionSeed(seed, ionCount));
+        ionCount++;
+
+        double launch = maxRadius + LAUNCH_MARGIN;
+        double kill = KILL_FACTOR * launch;
+        randomDirection(direction);
+        double x = launch * direction[0];
+        double y = launch * direction[1];
+        long steps = 0;
+
+        while (true) {
+            double rad = Math.sqrt(x * x + y * y);
+            if (rad > kill) {
+                // return to the drop circle where the walk would have hit it first
+                double phi = Math.atan2(y, x);
+                double spread = (rad - launch) / (rad + launch);
+                double theta = phi + 2 * Math.atan(spread * Math.tan(Math.PI * (random.nextDouble() - 0.5)));
+                x = launch * Math.cos(theta);
+                y = launch * Math.sin(theta);
+                steps++;
+                continue;
+            }
+
+            double free = rad - maxRadius - DIAMETER;
+            if (free < SEARCH_RINGS * SpatialHash.CELL_SIZE - DIAMETER)
+                free = Math.max(free, Math.sqrt(particles.nearestSquared(x, y, SEARCH_RINGS)) - DIAMETER);
+
+            randomDirection(direction);
+            steps++;
+            if (free > MIN_STEP) {
+                x += free * direction[0];
+                y += free * direction[1];
+                continue;
+            }
+
+            double contact = particles.firstContact(x, y, direction[0], direction[1], MIN_STEP, DIAMETER);
+            if (contact < 0) {
+                x += MIN_STEP * direction[0];
+                y += MIN_STEP * direction[1];
+                continue;
+            }
+
+            x += contact * direction[0];
+            y += contact * direction[1];
+            break;
+        }
+
+        walkSteps += steps;
+        return attach(x, y);
+    }
+
+    /**
+     * A function running the method crystallizeOneIon() "steps" times, and then delivering the
+     * crystallized particles to the listener.
+     * @param steps The number of ions to drop.
+     * @return "false" if the crystal is done, otherwise "true".
+     */
+    public boolean runSomeSteps(int steps) {
+        boolean goOn = true;
+        for (int i = 0; i < steps && goOn; i++) {
+            goOn = crystallizeOneIon();
+        }
+        flushUpdates();
+        return goOn;
+    }
+
+    /**
+     * Crystallizes a particle and hands it to the listener.
+     * @param x The x-coordinate of its centre.
+     * @param y The y-coordinate of its centre.
+     * @return "false" if the particle is on or outside the start circle, i.e. the crystal is done.
+     */
+    private boolean attach(double x, double y) {
+        particles.add(x, y);
+        statistics.add(x, y);
+        double rad = Math.sqrt(x * x + y * y);
+        maxRadius = Math.max(maxRadius, rad);
+
+        if (batchUpdateListener != null) {
+            batchXs[batchCount] = (int) Math.round(x);
+            batchYs[batchCount] = (int) Math.round(y);
+            batchOrder[batchCount] = particles.size();
+            if (++batchCount == batchXs.length)
+                flushUpdates();
+        }
+        return rad < startCircleRadius;
+    }
+
+    /**
+     * Picks a uniformly random direction, from a uniform point in the unit disc and without any
+     * trigonometry, like CrystalModel.dropNewIon().
+     * @param direction The array to store the unit vector in.
+     */
+    private void randomDirection(double[] direction) {
+        double u, v, s;
+        do {
+            u = 2 * random.nextDouble() - 1;
+            v = 2 * random.nextDouble() - 1;
+            s = u * u + v * v;
+        } while (s >= 1 || s == 0);
+
+        direction[0] = (u * u - v * v) / s;
+        direction[1] = 2 * u * v / s;
+    }
+
+    /**
+     * Grows an off-lattice crystal in a window, or without one to print its statistics.
+     * @param args Optionally the size of the bath (default 600) and "headless".
+     * @throws Exception If the window cannot be created.
+     */
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 600;
+        boolean headless = args.length > 1 && args[1].equals("headless");
+        OffLatticeModel model = new OffLatticeModel(size);
+        int escRad = model.getEscapeCircleRadius();
+
+        if (!headless) {
+            CrystalWindow window = new CrystalWindow("Off-lattice crystal", size, escRad, 256);
+            model.setBatchUpdateListener(window, window.getBatchSize());
+        }
+
+        long start = System.nanoTime();
+        while (model.runSomeSteps(100)) {
+            // grow until the crystal reaches the start circle
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d particles in %.2f s, %.0f moves per particle%n", model.getParticleCount(), seconds,
+                (double) model.getWalkSteps() / model.getParticleCount());
+        System.out.println(model.getStatistics());
+    }
+}
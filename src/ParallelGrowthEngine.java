@@ -0,0 +1,127 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A growth engine that lets several threads grow the same crystal at once. Every worker thread
+ * drops and walks ions of its own against the shared lattice of a CrystalModel, and an ion is
+ * crystallized with a compare-and-set on the lattice word, see {@link ConcurrentBitLattice}.
+ * The current radius is published through an atomic max, and every crystallized ion is
+ * delivered to the model's ModelUpdateListener (the calls are serialized by the model).
+ * <p>
+ * Note that concurrent growth is not exactly the same process as sequential growth. In the
+ * sequential model an ion always walks against the complete crystal of all earlier ions, here
+ * up to threads-1 other ions are walking at the same time and an ion can crystallize next to a
+ * cell that another ion has just left, or walk past a cell that is crystallized a moment later.
+ * With the accelerated walk it may also jump using a distance map that is a few updates behind.
+ * The deviation is of the order (threads / particles) per ion, which for a crystal of many
+ * thousand ions is well below the statistical noise between runs, but a bit-identical crystal
+ * for a given seed cannot be expected.
+ */
+public class ParallelGrowthEngine {
+
+    private final CrystalModel crystalModel;
+    private final int threads;
+
+    private volatile boolean complete = false;
+
+    /**
+     * Creates an engine for a model. The model must store its crystal in a ConcurrentBitLattice.
+     * @param crystalModel The model to grow.
+     * @param threads The number of worker threads.
+     */
+    public ParallelGrowthEngine(CrystalModel crystalModel, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("There must be at least one thread!");
+        }
+        this.crystalModel = crystalModel;
+        this.threads = threads;
+    }
+
+    /**
+     * Checks whether the crystal has reached the start circle.
+     * @return "true" if the crystal is done.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Grows the crystal on all worker threads until (at least) the given number of ions have
+     * crystallized or the crystal is done, and waits for the workers to finish. A few more
+     * ions than asked for may crystallize since walks in progress are completed.
+     * @param ions The number of ions to crystallize.
+     * @return The number of ions that actually crystallized.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    public long grow(long ions) throws InterruptedException {
+        AtomicLong remaining = new AtomicLong(ions);
+        AtomicLong crystallized = new AtomicLong();
+        AtomicLong dropped = new AtomicLong(crystalModel.getIonCount());
+
+        WalkRandom random = new SplitMixRandom();
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            Ion ion = new Ion(random.split());
+            workers[i] = new Thread(() -> {
+                while (!complete && remaining.get() > 0) {
+                    ion.index = dropped.getAndIncrement();
+                    crystalModel.dropNewIon(ion);
+
+                    CrystalModel.Outcome outcome = crystalModel.walk(ion);
+                    if (outcome == CrystalModel.Outcome.STUCK)
+                        outcome = crystalModel.crystallize(ion);
+                    crystalModel.recordIon(ion, outcome);
+
+                    switch (outcome) {
+                        case STUCK:
+                            crystallized.incrementAndGet();
+                            remaining.decrementAndGet();
+                            break;
+                        case COMPLETE:
+                            crystallized.incrementAndGet();
+                            complete = true;
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }, "crystal-worker-" + i);
+            workers[i].start();
+        }
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        crystalModel.setIonCount(dropped.get());
+        crystalModel.flushUpdates();
+        return crystallized.get();
+    }
+
+    /**
+     * Measures the scaling curve, ions per second against the number of threads, by growing
+     * a fresh crystal for every thread count from 1 up to the number of available processors.
+     * @param args Optionally the size of the bath and the number of ions to grow (default 2000 and 20000).
+     * @throws InterruptedException If the main thread is interrupted.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long ions = args.length > 1 ? Long.parseLong(args[1]) : 20000;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("threads\tions\tions/s\tspeedup");
+        double base = 0;
+        for (int t = 1; ; t = Math.min(t * 2, maxThreads)) {
+            CrystalModel model = new CrystalModel(new ConcurrentBitLattice(size));
+            model.toggleAcceleratedWalk();
+            ParallelGrowthEngine engine = new ParallelGrowthEngine(model, t);
+
+            long start = System.nanoTime();
+            long grown = engine.grow(ions);
+            double rate = grown / ((System.nanoTime() - start) / 1e9);
+            if (t == 1) base = rate;
+
+            System.out.printf("%d\t%d\t%.0f\t%.2f%n", t, grown, rate, rate / base);
+            if (t == maxThreads) break;
+        }
+    }
+}
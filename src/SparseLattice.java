@@ -0,0 +1,216 @@
+import java.util.Arrays;
+
+/**
+ * A Lattice for crystals far larger than a dense lattice allows. The lattice is divided into
+ * tiles of 64*64 cells, stored as 64 longs (one per row), and a tile is only allocated the first
+ * time a cell in it crystallizes. Tiles that were never allocated read as empty. The tiles are
+ * kept in an open-addressing hash map with primitive long keys, so a lookup allocates nothing.
+ * <p>
+ * A DLA crystal fills a vanishing part of its disc, so the memory grows with the crystal rather
+ * than with size*size. Walking ions mostly stay within one tile for many steps, so the last
+ * tile that was looked up is cached.
+ * <p>
+ * This lattice is not thread-safe, use a ConcurrentBitLattice with the growth engines.
+ */
+public class SparseLattice implements Lattice {
+
+    private static final int TILE_SHIFT = 6;
+    private static final int TILE_MASK = (1 << TILE_SHIFT) - 1;
+
+    private final int size;
+
+    private long[] keys;
+    private long[][] tiles; // null marks a free slot
+    private int tileCount = 0;
+
+    private long lastKey = Long.MIN_VALUE; // cache of the last lookup, an impossible key to start with
+    private long[] lastTile = null;
+
+    /**
+     * Creates an empty lattice of size*size cells.
+     * @param size The width and height of the lattice.
+     */
+    public SparseLattice(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size cannot be negative!");
+        }
+        this.size = size;
+        this.keys = new long[64];
+        this.tiles = new long[64][];
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Lattice emptyCopy() {
+        return new SparseLattice(size);
+    }
+
+    /**
+     * Getter for the number of allocated tiles, each taking about 530 bytes.
+     * @return An int value representing the number of tiles.
+     */
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    @Override
+    public boolean get(int col, int row) {
+        long[] tile = tile(col, row);
+        return tile != null && (tile[row & TILE_MASK] & (1L << col)) != 0;
+    }
+
+    @Override
+    public void set(int col, int row) {
+        createTile(col, row)[row & TILE_MASK] |= 1L << col;
+    }
+
+    @Override
+    public boolean trySet(int col, int row) {
+        long[] tile = createTile(col, row);
+        long mask = 1L << col;
+
+        if ((tile[row & TILE_MASK] & mask) != 0)
+            return false;
+
+        tile[row & TILE_MASK] |= mask;
+        return true;
+    }
+
+    /**
+     * When the cell is not at the edge of its tile, all four neighbours are in the same tile
+     * and are read from three of its words, otherwise each neighbour is looked up on its own.
+     */
+    @Override
+    public boolean anyNeighbours(int col, int row) {
+        int c = col & TILE_MASK;
+        int r = row & TILE_MASK;
+
+        if (c == 0 || c == TILE_MASK || r == 0 || r == TILE_MASK) {
+            return get(col, row - 1) || get(col, row + 1) || get(col - 1, row) || get(col + 1, row);
+        }
+
+        long[] tile = tile(col, row);
+        if (tile == null)
+            return false;
+
+        long mask = 1L << c;
+        return ((tile[r - 1] | tile[r + 1]) & mask) != 0 || (tile[r] & ((mask << 1) | (mask >>> 1))) != 0;
+    }
+
+    /**
+     * A row of a tile is one word, so the row is copied a tile at a time.
+     */
+    @Override
+    public void getRow(int row, long[] words) {
+        for (int i = 0; i < (size + 63) >>> 6; i++) {
+            long[] tile = tile(i << TILE_SHIFT, row);
+            words[i] = tile != null ? tile[row & TILE_MASK] : 0L;
+        }
+    }
+
+    /**
+     * Clears the lattice by dropping all tiles, the hash table itself is kept.
+     */
+    @Override
+    public void clear() {
+        Arrays.fill(tiles, null);
+        tileCount = 0;
+        lastKey = Long.MIN_VALUE;
+        lastTile = null;
+    }
+
+    /**
+     * Looks up the tile holding the cell at col,row.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return The tile, or null if nothing in it has crystallized.
+     */
+    private long[] tile(int col, int row) {
+        long key = key(col, row);
+        if (key == lastKey)
+            return lastTile;
+
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; tiles[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                lastKey = key;
+                lastTile = tiles[i];
+                return lastTile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the tile holding the cell at col,row and allocates it if it does not exist.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return The tile.
+     */
+    private long[] createTile(int col, int row) {
+        long[] tile = tile(col, row);
+        if (tile != null)
+            return tile;
+
+        if (2 * (tileCount + 1) > keys.length)
+            grow();
+
+        long key = key(col, row);
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (tiles[i] != null)
+            i = (i + 1) & mask;
+
+        tile = new long[1 << TILE_SHIFT];
+        keys[i] = key;
+        tiles[i] = tile;
+        tileCount++;
+
+        lastKey = key;
+        lastTile = tile;
+        return tile;
+    }
+
+    /**
+     * Doubles the hash table, keeping it at most half full.
+     */
+    private void grow() {
+        long[] oldKeys = keys;
+        long[][] oldTiles = tiles;
+        keys = new long[oldKeys.length * 2];
+        tiles = new long[oldTiles.length * 2][];
+
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldTiles.length; j++) {
+            if (oldTiles[j] == null) continue;
+            int i = hash(oldKeys[j]) & mask;
+            while (tiles[i] != null)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            tiles[i] = oldTiles[j];
+        }
+    }
+
+    /**
+     * Makes the key of the tile holding the cell at col,row.
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return The tile row in the upper and the tile column in the lower 32 bits.
+     */
+    private static long key(int col, int row) {
+        return ((long) (row >> TILE_SHIFT) << 32) | ((col >> TILE_SHIFT) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Spreads the bits of a key over an int (Fibonacci hashing).
+     * @param key The key.
+     * @return The hash.
+     */
+    private static int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+}
@@ -0,0 +1,237 @@
+import java.util.Arrays;
+
+/**
+ * The particles of an off-lattice crystal, discs with continuous coordinates, indexed by a uniform
+ * grid of square cells. Only the cells that hold a particle are stored, in an open-addressing hash
+ * table from the cell to the last particle added to it, and the particles of a cell are chained
+ * through an int array. The memory is therefore proportional to the number of particles and not to
+ * the area of the bath.
+ * <p>
+ * The contact query only looks at the 3*3 cells around a point, so it sees every particle closer
+ * than CELL_SIZE to it. A SpatialHash is not thread-safe.
+ */
+public class SpatialHash {
+
+    static final double CELL_SIZE = 2.0; // two diameters of a particle
+    private static final long EMPTY = Long.MIN_VALUE; // a key that no cell can have
+
+    private double[] xs = new double[1024];
+    private double[] ys = new double[1024];
+    private int[] next = new int[1024]; // the previous particle added to the same cell, or -1
+    private int count = 0;
+
+    private long[] keys; // the cells, as (cx << 32) | cy
+    private int[] heads; // the last particle added to the cell of the key
+    private int cells = 0;
+
+    /**
+     * Creates an empty hash.
+     */
+    public SpatialHash() {
+        keys = new long[1024];
+        heads = new int[1024];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Removes all particles.
+     */
+    public void clear() {
+        count = 0;
+        cells = 0;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Getter for the number of particles.
+     * @return The number of particles.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Getter for the x-coordinate of a particle.
+     * @param i The index of the particle, in the order they were added.
+     * @return The x-coordinate of its centre.
+     */
+    public double getX(int i) {
+        return xs[i];
+    }
+
+    /**
+     * Getter for the y-coordinate of a particle.
+     * @param i The index of the particle, in the order they were added.
+     * @return The y-coordinate of its centre.
+     */
+    public double getY(int i) {
+        return ys[i];
+    }
+
+    /**
+     * Adds a particle.
+     * @param x The x-coordinate of its centre.
+     * @param y The y-coordinate of its centre.
+     * @return The index of the particle.
+     */
+    public int add(double x, double y) {
+        if (count == xs.length) {
+            xs = Arrays.copyOf(xs, 2 * count);
+            ys = Arrays.copyOf(ys, 2 * count);
+            next = Arrays.copyOf(next, 2 * count);
+        }
+        if (2 * (cells + 1) > keys.length)
+            rehash();
+
+        long key = key(cell(x), cell(y));
+        int slot = slot(key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            heads[slot] = -1;
+            cells++;
+        }
+
+        int i = count++;
+        xs[i] = x;
+        ys[i] = y;
+        next[i] = heads[slot];
+        heads[slot] = i;
+        return i;
+    }
+
+    /**
+     * Finds the squared distance from a point to the nearest particle centre, if it is closer than
+     * a limit. The cells are searched in square rings around the cell of the point, and the search
+     * stops at the first ring that is farther away than the nearest particle found so far.
+     * @param x The x-coordinate of the point.
+     * @param y The y-coordinate of the point.
+     * @param rings The number of rings of cells to search, at least 1, so the limit is rings*CELL_SIZE.
+     * @return The squared distance, or (rings*CELL_SIZE)^2 if no particle is that close.
+     */
+    public double nearestSquared(double x, double y, int rings) {
+        int cx = cell(x);
+        int cy = cell(y);
+        double nearest = Double.POSITIVE_INFINITY;
+
+        for (int k = 0; k <= rings; k++) {
+            // every particle outside the rings searched so far is at least (k-1)*CELL_SIZE away
+            double bound = (k - 1) * CELL_SIZE;
+            if (k > 1 && nearest <= bound * bound)
+                return nearest;
+
+            for (int j = cy - k; j <= cy + k; j++) {
+                int step = j == cy - k || j == cy + k ? 1 : 2 * k; // only the edge of the ring
+                for (int i = cx - k; i <= cx + k; i += Math.max(step, 1)) {
+                    for (int p = head(i, j); p >= 0; p = next[p]) {
+                        double dx = xs[p] - x;
+                        double dy = ys[p] - y;
+                        nearest = Math.min(nearest, dx * dx + dy * dy);
+                    }
+                }
+            }
+        }
+        double limit = rings * CELL_SIZE;
+        return Math.min(nearest, limit * limit);
+    }
+
+    /**
+     * Finds how far a point can move along a ray before it comes within a given distance of a particle
+     * centre, i.e. before a disc at the point touches a particle.
+     * @param x The x-coordinate of the point.
+     * @param y The y-coordinate of the point.
+     * @param dx The x-component of the direction, the direction must have length 1.
+     * @param dy The y-component of the direction.
+     * @param length The length of the move, length + contact must be at most CELL_SIZE.
+     * @param contact The distance between the centres when they touch.
+     * @return The distance to the first contact, or -1 if the whole move is free.
+     */
+    public double firstContact(double x, double y, double dx, double dy, double length, double contact) {
+        int cx = cell(x);
+        int cy = cell(y);
+        double first = -1;
+
+        for (int j = cy - 1; j <= cy + 1; j++) {
+            for (int i = cx - 1; i <= cx + 1; i++) {
+                for (int p = head(i, j); p >= 0; p = next[p]) {
+                    // solve |(x, y) + t (dx, dy) - centre| = contact for the smallest t
+                    double ox = x - xs[p];
+                    double oy = y - ys[p];
+                    double b = ox * dx + oy * dy;
+                    double c = ox * ox + oy * oy - contact * contact;
+                    double discriminant = b * b - c;
+                    if (discriminant < 0)
+                        continue;
+
+                    double t = Math.max(0, -b - Math.sqrt(discriminant));
+                    if (t <= length && (first < 0 || t < first) && (b < 0 || c <= 0))
+                        first = t;
+                }
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Finds the first particle of a cell.
+     * @param cx The column of the cell.
+     * @param cy The row of the cell.
+     * @return The index of the last particle added to the cell, or -1 if it is empty.
+     */
+    private int head(int cx, int cy) {
+        long key = key(cx, cy);
+        int slot = slot(key);
+        return keys[slot] == key ? heads[slot] : -1;
+    }
+
+    /**
+     * Finds the slot of a key, or the empty slot where it would go, by linear probing.
+     * @param key The key of a cell.
+     * @return The index in keys and heads.
+     */
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int slot = (int) WalkRandom.mix64(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Doubles the hash table and inserts the cells again.
+     */
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldHeads = heads;
+        keys = new long[2 * oldKeys.length];
+        heads = new int[2 * oldKeys.length];
+        Arrays.fill(keys, EMPTY);
+
+        for (int s = 0; s < oldKeys.length; s++) {
+            if (oldKeys[s] != EMPTY) {
+                int slot = slot(oldKeys[s]);
+                keys[slot] = oldKeys[s];
+                heads[slot] = oldHeads[s];
+            }
+        }
+    }
+
+    /**
+     * Finds the cell of a coordinate.
+     * @param v The x- or y-coordinate.
+     * @return The column or row of the cell.
+     */
+    private static int cell(double v) {
+        return (int) Math.floor(v / CELL_SIZE);
+    }
+
+    /**
+     * Packs a cell into a key of the hash table.
+     * @param cx The column of the cell.
+     * @param cy The row of the cell.
+     * @return The key.
+     */
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * A WalkRandom using the SplitMix64 algorithm, the same as java.util.SplittableRandom: the state
+ * is a counter advanced by a fixed odd constant and every draw is the mixed counter. It is the
+ * default generator of the model since seeding it is as cheap as setting the counter.
+ */
+public class SplitMixRandom extends WalkRandom {
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private long state;
+
+    /**
+     * Creates a generator from a seed.
+     * @param seed The seed.
+     */
+    public SplitMixRandom(long seed) {
+        setSeed(seed);
+    }
+
+    /**
+     * Creates a generator with a seed made from the current time.
+     */
+    public SplitMixRandom() {
+        this(mix64(System.nanoTime()) ^ System.identityHashCode(Thread.currentThread()));
+    }
+
+    @Override
+    public long nextLong() {
+        return mix64(state += GOLDEN_GAMMA);
+    }
+
+    @Override
+    public WalkRandom split() {
+        return new SplitMixRandom(nextLong());
+    }
+
+    @Override
+    protected void seed(long seed) {
+        state = seed;
+    }
+
+    @Override
+    protected long[] state() {
+        return new long[] {state};
+    }
+
+    @Override
+    protected void restore(long[] state, int offset) {
+        this.state = state[offset];
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free ring buffer of crystallized positions, written by the simulation thread and read
+ * by the Swing thread. There is one producer and one consumer at a time (listener calls are
+ * serialized by the model), so two counters are enough: the producer only moves the tail and
+ * the consumer only moves the head, and each publishes its counter with an ordered write.
+ * <p>
+ * If the consumer falls so far behind that the buffer is full, the producer yields until there
+ * is room again rather than dropping positions. With the default capacity that takes several
+ * seconds worth of frames at any realistic growth rate.
+ */
+public class StickBuffer {
+
+    static final long MARK = Long.MIN_VALUE; // not a position that can be added, see mark()
+
+    private final long[] ring;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong(); // next position to read
+    private final AtomicLong tail = new AtomicLong(); // next position to write
+
+    /**
+     * Creates an empty buffer.
+     * @param capacityBits The capacity is 2^capacityBits positions.
+     */
+    public StickBuffer(int capacityBits) {
+        this.ring = new long[1 << capacityBits];
+        this.mask = ring.length - 1;
+    }
+
+    /**
+     * Appends a position. Only called by the producer.
+     * @param x The x-coordinate.
+     * @param y The y-coordinate.
+     */
+    public void add(int x, int y) {
+        long t = tail.get();
+        while (t - head.get() == ring.length) {
+            Thread.yield();
+        }
+        ring[(int) t & mask] = ((long) x << 32) | (y & 0xFFFFFFFFL);
+        tail.lazySet(t + 1);
+    }
+
+    /**
+     * Appends a mark that the consumer reads in order with the positions, as the packed value MARK.
+     * Only called by the producer, e.g. to tell the consumer that everything before the mark is void.
+     */
+    public void mark() {
+        long t = tail.get();
+        while (t - head.get() == ring.length) {
+            Thread.yield();
+        }
+        ring[(int) t & mask] = MARK;
+        tail.lazySet(t + 1);
+    }
+
+    /**
+     * Checks whether there is anything to read. Only called by the consumer.
+     * @return "true" if the buffer is empty.
+     */
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * Reads the packed positions that have been written so far into an array. Only called by
+     * the consumer.
+     * @param into The array to read into, unpack with {@link StickBuffer#x(long)} and {@link StickBuffer#y(long)}.
+     * @return The number of positions read, at most into.length.
+     */
+    public int drain(long[] into) {
+        long h = head.get();
+        int n = (int) Math.min(tail.get() - h, into.length);
+        for (int i = 0; i < n; i++) {
+            into[i] = ring[(int) (h + i) & mask];
+        }
+        head.lazySet(h + n);
+        return n;
+    }
+
+    /**
+     * Drops everything that has not been read yet. Only called by the consumer.
+     */
+    public void clear() {
+        head.lazySet(tail.get());
+    }
+
+    /**
+     * Unpacks the x-coordinate of a position read by drain().
+     * @param packed The packed position.
+     * @return The x-coordinate.
+     */
+    public static int x(long packed) {
+        return (int) (packed >> 32);
+    }
+
+    /**
+     * Unpacks the y-coordinate of a position read by drain().
+     * @param packed The packed position.
+     * @return The y-coordinate.
+     */
+    public static int y(long packed) {
+        return (int) packed;
+    }
+}
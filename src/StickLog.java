@@ -0,0 +1,274 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append-only binary log of every ion that crystallizes, so that a growth can be drawn or
+ * analysed again without simulating it, see {@link StickReplay}. A log is attached to a model
+ * with {@link CrystalModel#setStickLog(StickLog)}.
+ * <p>
+ * After a header (a magic number and the size of the bath) every event is a few variable-length
+ * integers of 7 bits per byte, so a stick usually takes 4 to 8 bytes: the position as the zigzag
+ * encoded difference to the previous stick, the difference of the ion index to the previous one
+ * and the number of moves of the walk. A reset of the model is written as an event of its own.
+ * The events are collected in a buffer, and a full buffer is handed to a writer thread of the log
+ * that writes it to the channel while the other buffer is filled. The model thereby only pays for
+ * the encoding when an ion crystallizes, and never waits for the disk while it holds its lock,
+ * unless the disk falls a whole buffer behind.
+ * <p>
+ * A StickLog is not thread-safe, the model only appends to it while holding its own lock.
+ */
+public class StickLog implements Closeable {
+
+    static final long MAGIC = 0x31304B5453414C44L; // "DLASTK01" read little-endian
+    static final int HEADER_BYTES = 12;
+    static final int RESET = 1; // the first value of a reset event, a stick always has an even first value
+    static final int MAX_EVENT_BYTES = 4 * 10;
+
+    private final int size;
+    private final FileChannel channel;
+    private final Thread writer;
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16); // the buffer that is being filled
+    // guarded by the log itself
+    private ByteBuffer spare = ByteBuffer.allocateDirect(1 << 16); // null while the writer has it
+    private ByteBuffer full; // handed to the writer, but not taken yet
+    private boolean closed = false;
+    private IOException failure; // the first error of the writer
+
+    private int lastX = 0;
+    private int lastY = 0;
+    private long lastIndex = -1;
+    private long sticks = 0;
+
+    /**
+     * Creates a new log, replacing the file if it exists.
+     * @param file The file to write.
+     * @param size The size of the bath of the model that is logged.
+     * @throws IOException If the file cannot be created.
+     */
+    public StickLog(File file, int size) throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size cannot be negative!");
+        }
+        this.size = size;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(MAGIC);
+        buffer.putInt(size);
+
+        writer = new Thread(this::write, "stick-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Getter for the size of the bath of the logged model.
+     * @return An int value representing the size.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Getter for the number of sticks appended so far.
+     * @return The number of sticks.
+     */
+    public long getStickCount() {
+        return sticks;
+    }
+
+    /**
+     * Appends a crystallized ion to the log.
+     * @param x The x-coordinate (in bath-coordinates) of the ion.
+     * @param y The y-coordinate (in bath-coordinates) of the ion.
+     * @param index The index of the ion, see {@link CrystalModel#getIonCount()}, or -1 if it is not known.
+     * @param steps The number of moves of the walk of the ion.
+     */
+    void append(int x, int y, long index, long steps) {
+        ensureRoom();
+        putVarLong(zigzag(x - lastX) << 1);
+        putVarLong(zigzag(y - lastY));
+        putVarLong(zigzag(index - lastIndex));
+        putVarLong(steps);
+
+        lastX = x;
+        lastY = y;
+        lastIndex = index;
+        sticks++;
+    }
+
+    /**
+     * Appends a reset of the model to the log. The sticks after it start a new crystal.
+     */
+    void reset() {
+        ensureRoom();
+        putVarLong(RESET);
+
+        lastX = 0;
+        lastY = 0;
+        lastIndex = -1;
+    }
+
+    /**
+     * Writes the buffered events to the file, and waits until they are written.
+     * @throws IOException If the file cannot be written.
+     */
+    public void flush() throws IOException {
+        handOver();
+        synchronized (this) {
+            // the buffer is back as the spare when the writer is done with it
+            while (spare == null && failure == null) {
+                awaitWriter();
+            }
+            if (failure != null)
+                throw failure;
+        }
+    }
+
+    /**
+     * Writes the buffered events to the file and closes it.
+     * @throws IOException If the file cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Makes sure that the buffer has room for one more event, handing it to the writer if not.
+     */
+    private void ensureRoom() {
+        if (buffer.remaining() < MAX_EVENT_BYTES) {
+            try {
+                handOver();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Hands the buffer to the writer and continues with the spare one. Only waits if the writer
+     * is still writing the previous buffer.
+     * @throws IOException If the writer has failed to write an earlier buffer.
+     */
+    private synchronized void handOver() throws IOException {
+        while (spare == null && failure == null) {
+            awaitWriter();
+        }
+        if (failure != null)
+            throw failure;
+
+        buffer.flip();
+        full = buffer;
+        buffer = spare;
+        spare = null;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the writer to signal. Must be called while holding the lock of the log.
+     * @throws IOException If the wait is interrupted.
+     */
+    private void awaitWriter() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the log to be written!");
+        }
+    }
+
+    /**
+     * The loop of the writer thread, which writes the buffers handed over to it until the log is closed.
+     */
+    private void write() {
+        while (true) {
+            ByteBuffer next;
+            synchronized (this) {
+                while (full == null && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (full == null)
+                    return;
+                next = full;
+                full = null;
+            }
+
+            IOException error = null;
+            try {
+                while (next.hasRemaining()) {
+                    channel.write(next);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            next.clear();
+
+            synchronized (this) {
+                spare = next;
+                if (error != null && failure == null)
+                    failure = error;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Puts a value into the buffer, 7 bits per byte starting with the lowest bits. The highest bit
+     * of a byte is set when more bytes follow.
+     * @param value The value, treated as unsigned.
+     */
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Maps a signed value to an unsigned one where small negative values stay small: 0, -1, 1, -2 ...
+     * become 0, 1, 2, 3 ...
+     * @param value The signed value.
+     * @return The zigzag encoded value.
+     */
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * The inverse of zigzag().
+     * @param value The zigzag encoded value.
+     * @return The signed value.
+     */
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,256 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a log written by a {@link StickLog} and feeds it to a listener, e.g. a CrystalView, at any
+ * rate, so a growth can be drawn or analysed again without simulating it. The events can also be
+ * read one at a time with next().
+ */
+public class StickReplay implements Closeable {
+
+    private final int size;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    private boolean endOfFile = false;
+
+    // the last event read by next()
+    private boolean reset;
+    private int x = 0;
+    private int y = 0;
+    private long index = -1;
+    private long steps;
+
+    /**
+     * Opens a log for reading.
+     * @param file The file written by a StickLog.
+     * @throws IOException If the file cannot be read or is not a stick log.
+     */
+    public StickReplay(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.limit(0);
+
+        fill();
+        if (buffer.remaining() < StickLog.HEADER_BYTES || buffer.getLong() != StickLog.MAGIC) {
+            channel.close();
+            throw new IOException(file + " is not a stick log!");
+        }
+        this.size = buffer.getInt();
+    }
+
+    /**
+     * Getter for the size of the bath of the logged model.
+     * @return An int value representing the size.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Reads the next event of the log.
+     * @return "false" at the end of the log, "true" if an event was read.
+     * @throws IOException If the file cannot be read or ends in the middle of an event.
+     */
+    public boolean next() throws IOException {
+        if (buffer.remaining() < StickLog.MAX_EVENT_BYTES && !endOfFile)
+            fill();
+        if (!buffer.hasRemaining())
+            return false;
+
+        long first = getVarLong();
+        reset = first == StickLog.RESET;
+        if (reset) {
+            x = 0;
+            y = 0;
+            index = -1;
+            return true;
+        }
+
+        x += (int) StickLog.unzigzag(first >>> 1);
+        y += (int) StickLog.unzigzag(getVarLong());
+        index += StickLog.unzigzag(getVarLong());
+        steps = getVarLong();
+        return true;
+    }
+
+    /**
+     * Checks whether the last event was a reset of the model rather than a stick.
+     * @return "true" for a reset.
+     */
+    public boolean isReset() {
+        return reset;
+    }
+
+    /**
+     * Getter for the x-coordinate (in bath-coordinates) of the last stick.
+     * @return An int value representing the x-coordinate.
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Getter for the y-coordinate (in bath-coordinates) of the last stick.
+     * @return An int value representing the y-coordinate.
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Getter for the index of the ion of the last stick, -1 if the model did not know it.
+     * @return The index of the ion.
+     */
+    public long getIonIndex() {
+        return index;
+    }
+
+    /**
+     * Getter for the number of moves of the walk of the last stick.
+     * @return The number of moves.
+     */
+    public long getWalkSteps() {
+        return steps;
+    }
+
+    /**
+     * Feeds the rest of the log to a listener, in batches in the same form as a model does. A reset in
+     * the log is delivered as a reset. The order of a stick is counted from the first cell of the
+     * crystal, so it is the same as the model gave unless the log was attached in the middle of a growth.
+     * @param listener The listener.
+     * @param batchSize The largest number of sticks in a batch.
+     * @param rate The number of sticks per second, or 0 for as fast as possible.
+     * @return The number of sticks replayed.
+     * @throws IOException If the file cannot be read.
+     * @throws InterruptedException If the thread is interrupted while waiting for the rate.
+     */
+    public long replay(BatchUpdateListener listener, int batchSize, double rate) throws IOException, InterruptedException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive!");
+        }
+        if (rate > 0)
+            batchSize = (int) Math.max(1, Math.min(batchSize, rate / 60));
+
+        int[] xs = new int[batchSize];
+        int[] ys = new int[batchSize];
+        long[] order = new long[batchSize];
+        int count = 0;
+        long particles = 1;
+        long replayed = 0;
+        long start = System.nanoTime();
+
+        while (next()) {
+            if (reset) {
+                if (count > 0)
+                    listener.update(xs, ys, order, count);
+                count = 0;
+                particles = 1;
+                listener.reset();
+                continue;
+            }
+
+            xs[count] = x;
+            ys[count] = y;
+            order[count] = ++particles;
+            count++;
+            replayed++;
+
+            if (count == batchSize) {
+                listener.update(xs, ys, order, count);
+                count = 0;
+
+                if (rate > 0) {
+                    long wait = start + (long) (replayed * 1e9 / rate) - System.nanoTime();
+                    if (wait > 0)
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                }
+            }
+        }
+        if (count > 0)
+            listener.update(xs, ys, order, count);
+        return replayed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer and reads as much of the file as fits after them.
+     * @throws IOException If the file cannot be read.
+     */
+    private void fill() throws IOException {
+        buffer.compact();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                endOfFile = true;
+                break;
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Reads a value written by StickLog.putVarLong().
+     * @return The value.
+     * @throws IOException If the log ends in the middle of the value.
+     */
+    private long getVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining())
+                throw new EOFException("The stick log ends in the middle of an event!");
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IOException("The stick log is damaged!");
+    }
+
+    /**
+     * Replays a log in a window, or without one to measure how fast a log can be read.
+     * @param args The name of the file, optionally the rate in sticks per second (default 0, as fast
+     *             as possible) and "headless" to only count the sticks.
+     * @throws Exception If the log cannot be read.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java StickReplay <file> [rate] [headless]");
+            return;
+        }
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+        boolean headless = args.length > 2 && args[2].equals("headless");
+        int batchSize = 4096;
+
+        try (StickReplay replay = new StickReplay(new File(args[0]))) {
+            int escRad = replay.getSize() / 2 - 4; // as in CrystalModel
+            BatchUpdateListener listener;
+
+            if (headless) {
+                listener = new BatchUpdateListener() {
+                    @Override
+                    public void update(int[] xs, int[] ys, long[] order, int count) {
+                    }
+
+                    @Override
+                    public void reset() {
+                    }
+                };
+            } else {
+                listener = new CrystalWindow("Replay of " + args[0], replay.getSize(), escRad, batchSize);
+            }
+
+            long start = System.nanoTime();
+            long sticks = replay.replay(listener, batchSize, rate);
+            System.out.printf("%d sticks replayed in %.2f s%n", sticks, (System.nanoTime() - start) / 1e9);
+        }
+    }
+}
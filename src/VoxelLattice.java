@@ -0,0 +1,214 @@
+import java.util.Arrays;
+
+/**
+ * A three-dimensional lattice of size*size*size voxels, packed as bits. Every long holds a brick
+ * of 4*4*4 voxels, so the six neighbours of a voxel are mostly in the same word, and the bricks
+ * are grouped in chunks of 64*64*64 voxels (16*16*16 bricks, 32 kB) that are only allocated the
+ * first time a voxel in them is set. Chunks that were never allocated read as empty, so a DLA
+ * aggregate, which fills a vanishing part of its ball, needs far less than the size^3 / 8 bytes of
+ * a dense bit lattice, let alone the size^3 bytes of a boolean[][][].
+ * <p>
+ * Coordinates are not checked, they must be within 0..size-1. A VoxelLattice is not thread-safe.
+ */
+public class VoxelLattice {
+
+    private static final int CHUNK_SHIFT = 6; // 64 voxels along every axis
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+    private static final int CHUNK_WORDS = 1 << (3 * (CHUNK_SHIFT - 2));
+
+    // the bits of the neighbours of every bit of a brick that are in the same brick
+    private static final long[] NEIGHBOURS_IN_BRICK = new long[64];
+
+    static {
+        for (int bit = 0; bit < 64; bit++) {
+            int x = bit & 3, y = (bit >> 2) & 3, z = bit >> 4;
+            long mask = 0;
+            if (x > 0) mask |= 1L << (bit - 1);
+            if (x < 3) mask |= 1L << (bit + 1);
+            if (y > 0) mask |= 1L << (bit - 4);
+            if (y < 3) mask |= 1L << (bit + 4);
+            if (z > 0) mask |= 1L << (bit - 16);
+            if (z < 3) mask |= 1L << (bit + 16);
+            NEIGHBOURS_IN_BRICK[bit] = mask;
+        }
+    }
+
+    private final int size;
+    private final int chunksPerRow;
+    private final long[][] chunks; // null chunks are empty
+    private int chunkCount = 0;
+
+    /**
+     * Creates an empty lattice of size*size*size voxels.
+     * @param size The width, height and depth of the lattice.
+     */
+    public VoxelLattice(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size cannot be negative!");
+        }
+        this.size = size;
+        this.chunksPerRow = (size >> CHUNK_SHIFT) + 1;
+        this.chunks = new long[chunksPerRow * chunksPerRow * chunksPerRow][];
+    }
+
+    /**
+     * Getter for the width, height and depth of the lattice.
+     * @return The size.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Getter for the number of allocated chunks, each taking 32 kB.
+     * @return The number of chunks.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Checks whether a voxel is set.
+     * @param x The x-coordinate of the voxel.
+     * @param y The y-coordinate of the voxel.
+     * @param z The z-coordinate of the voxel.
+     * @return "true" if the voxel is set.
+     */
+    public boolean get(int x, int y, int z) {
+        long[] chunk = chunks[chunkIndex(x, y, z)];
+        return chunk != null && (chunk[brickIndex(x, y, z)] & (1L << bit(x, y, z))) != 0;
+    }
+
+    /**
+     * Sets a voxel, allocating its chunk if needed.
+     * @param x The x-coordinate of the voxel.
+     * @param y The y-coordinate of the voxel.
+     * @param z The z-coordinate of the voxel.
+     */
+    public void set(int x, int y, int z) {
+        int c = chunkIndex(x, y, z);
+        long[] chunk = chunks[c];
+        if (chunk == null) {
+            chunk = new long[CHUNK_WORDS];
+            chunks[c] = chunk;
+            chunkCount++;
+        }
+        chunk[brickIndex(x, y, z)] |= 1L << bit(x, y, z);
+    }
+
+    /**
+     * Checks whether any of the six face neighbours of a voxel is set. The neighbours in the same
+     * brick are tested with a single mask on its word, and only a voxel on the face of its brick
+     * has to look in the next brick.
+     * @param x The x-coordinate of the voxel, not on the edge of the lattice.
+     * @param y The y-coordinate of the voxel, not on the edge of the lattice.
+     * @param z The z-coordinate of the voxel, not on the edge of the lattice.
+     * @return "true" if a neighbour is set.
+     */
+    public boolean anyNeighbours(int x, int y, int z) {
+        long[] chunk = chunks[chunkIndex(x, y, z)];
+        if (chunk != null && (chunk[brickIndex(x, y, z)] & NEIGHBOURS_IN_BRICK[bit(x, y, z)]) != 0)
+            return true;
+
+        int bx = x & 3, by = y & 3, bz = z & 3;
+        return (bx == 0 && get(x - 1, y, z)) || (bx == 3 && get(x + 1, y, z))
+                || (by == 0 && get(x, y - 1, z)) || (by == 3 && get(x, y + 1, z))
+                || (bz == 0 && get(x, y, z - 1)) || (bz == 3 && get(x, y, z + 1));
+    }
+
+    /**
+     * Clears every voxel and frees the chunks.
+     */
+    public void clear() {
+        Arrays.fill(chunks, null);
+        chunkCount = 0;
+    }
+
+    /**
+     * Projects the set voxels along the z-axis onto a 2D lattice, so a cell at x,y is set if any
+     * voxel at x,y is. Only the allocated chunks are read.
+     * @return A new BitLattice of size*size cells, with x as the column and y as the row.
+     */
+    public Lattice projection() {
+        return flatten(-1);
+    }
+
+    /**
+     * Cuts a slice at a given depth out of the lattice.
+     * @param z The z-coordinate of the slice.
+     * @return A new BitLattice of size*size cells, with x as the column and y as the row.
+     */
+    public Lattice slice(int z) {
+        if (z < 0 || z >= size) {
+            throw new IllegalArgumentException("The slice is outside the lattice!");
+        }
+        return flatten(z);
+    }
+
+    /**
+     * Copies the set voxels of one depth, or of all depths, to a 2D lattice.
+     * @param depth The z-coordinate to copy, or -1 for all.
+     * @return A new BitLattice.
+     */
+    private Lattice flatten(int depth) {
+        Lattice lattice = new BitLattice(size);
+        for (int c = 0; c < chunks.length; c++) {
+            long[] chunk = chunks[c];
+            if (chunk == null)
+                continue;
+
+            int cx = (c % chunksPerRow) << CHUNK_SHIFT;
+            int cy = ((c / chunksPerRow) % chunksPerRow) << CHUNK_SHIFT;
+            int cz = (c / chunksPerRow / chunksPerRow) << CHUNK_SHIFT;
+            if (depth >= 0 && (depth >> CHUNK_SHIFT) != (cz >> CHUNK_SHIFT))
+                continue;
+            for (int b = 0; b < CHUNK_WORDS; b++) {
+                long word = chunk[b];
+                while (word != 0) {
+                    int bit = Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+
+                    int x = cx + ((b & 15) << 2) + (bit & 3);
+                    int y = cy + (((b >> 4) & 15) << 2) + ((bit >> 2) & 3);
+                    int z = cz + ((b >> 8) << 2) + (bit >> 4);
+                    if (depth < 0 || z == depth)
+                        lattice.set(x, y);
+                }
+            }
+        }
+        return lattice;
+    }
+
+    /**
+     * Calculates the index of the chunk of a voxel.
+     * @param x The x-coordinate of the voxel.
+     * @param y The y-coordinate of the voxel.
+     * @param z The z-coordinate of the voxel.
+     * @return The index in chunks.
+     */
+    private int chunkIndex(int x, int y, int z) {
+        return ((z >> CHUNK_SHIFT) * chunksPerRow + (y >> CHUNK_SHIFT)) * chunksPerRow + (x >> CHUNK_SHIFT);
+    }
+
+    /**
+     * Calculates the index of the brick of a voxel within its chunk.
+     * @param x The x-coordinate of the voxel.
+     * @param y The y-coordinate of the voxel.
+     * @param z The z-coordinate of the voxel.
+     * @return The index of the word in the chunk.
+     */
+    private static int brickIndex(int x, int y, int z) {
+        return (((z & CHUNK_MASK) >> 2) << 8) | (((y & CHUNK_MASK) >> 2) << 4) | ((x & CHUNK_MASK) >> 2);
+    }
+
+    /**
+     * Calculates the bit of a voxel within its brick.
+     * @param x The x-coordinate of the voxel.
+     * @param y The y-coordinate of the voxel.
+     * @param z The z-coordinate of the voxel.
+     * @return The bit, 0-63.
+     */
+    private static int bit(int x, int y, int z) {
+        return (x & 3) | ((y & 3) << 2) | ((z & 3) << 4);
+    }
+}
@@ -0,0 +1,376 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A three-dimensional model of the bath: ions walk on a cubic lattice, one of six directions per
+ * step, and crystallize when a face neighbour has crystallized. The API follows
+ * {@link CrystalModel} with a z-coordinate added, and the bath-coordinates have 0,0,0 in the middle.
+ * <p>
+ * The crystal is stored in a {@link VoxelLattice}, bit-packed in bricks of 4*4*4 voxels that are
+ * only allocated where the crystal is, and the stick test of every step is a mask on the word of
+ * the brick. Ions are dropped on a sphere just outside the crystal and discarded on a kill sphere
+ * of KILL_FACTOR times that, since a walk in three dimensions need not come back. Far from the
+ * crystal an ion jumps to a uniformly random point on a sphere that is free from the crystal,
+ * like the accelerated walk of CrystalModel, so the empty space costs a few jumps.
+ * <p>
+ * The crystal can be shown in a CrystalView as its projection along the z-axis, through the batch
+ * listener, or written headless as a projection or slice with {@link VoxelLattice#projection()},
+ * {@link VoxelLattice#slice(int)} and a CrystalExporter. A VoxelModel is not thread-safe.
+ */
+public class VoxelModel {
+
+    private static final int MARGIN = 3; // the current radius, outside the farthest voxel
+    private static final int KILL_FACTOR = 4; // the kill sphere, relative to the launch sphere
+    private static final int MIN_JUMP_RADIUS = 4; // closer to the crystal than this the ion takes unit steps
+
+    // the moves of the six directions
+    private static final int[] X_MOVE = {1, -1, 0, 0, 0, 0};
+    private static final int[] Y_MOVE = {0, 0, 1, -1, 0, 0};
+    private static final int[] Z_MOVE = {0, 0, 0, 0, 1, -1};
+
+    private final int size;
+    private final int escapeRadius; // the largest radius an ion can reach
+    private final int startRadius; // the crystal is done when it reaches this radius
+    private final int offset; // from bath-coordinates to the lattice
+
+    private final VoxelLattice lattice;
+    private int currentRadius;
+    private long particleCount;
+
+    private final WalkRandom random = new SplitMixRandom();
+    private final double[] point = new double[3]; // on the unit sphere, reused so that a walk does not allocate
+    private final boolean seeded;
+    private final long seed;
+    private long ionCount = 0;
+    private long walkSteps = 0;
+    private long directions; // random bits for the next directions
+    private int directionBits = 0;
+
+    private BatchUpdateListener batchUpdateListener;
+    private int[] batchXs = new int[0];
+    private int[] batchYs = new int[0];
+    private long[] batchOrder = new long[0];
+    private int batchCount = 0;
+
+    /**
+     * Creates a model of a bath of size*size*size voxels with a first voxel in the middle.
+     * @param size The width, height and depth of the bath.
+     */
+    public VoxelModel(int size) {
+        this(size, false, 0);
+    }
+
+    /**
+     * Creates a model of the bath where the walk of every ion is determined by a seed.
+     * @param size The width, height and depth of the bath.
+     * @param seed The seed that the walks of the ions are derived from.
+     */
+    public VoxelModel(int size, long seed) {
+        this(size, true, seed);
+    }
+
+    private VoxelModel(int size, boolean seeded, long seed) {
+        if (size < 32) {
+            throw new IllegalArgumentException("The bath must be at least 32 wide!");
+        }
+        this.size = size;
+        this.escapeRadius = size / 2 - 4;
+        this.startRadius = escapeRadius / 2;
+        this.offset = escapeRadius + 4;
+        this.lattice = new VoxelLattice(size);
+        this.seeded = seeded;
+        this.seed = seed;
+        reset();
+    }
+
+    /**
+     * Removes the crystal and puts a first voxel in the middle of the bath.
+     */
+    public void reset() {
+        lattice.clear();
+        lattice.set(offset, offset, offset);
+        currentRadius = MARGIN;
+        particleCount = 1;
+        ionCount = 0;
+        walkSteps = 0;
+
+        batchCount = 0;
+        if (batchUpdateListener != null)
+            batchUpdateListener.reset();
+    }
+
+    /**
+     * Getter for the width, height and depth of the bath.
+     * @return The size.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Getter for the escape radius, as in CrystalModel. The 2D projection fits a CrystalView of the same size.
+     * @return The largest radius an ion can reach.
+     */
+    public int getEscapeCircleRadius() {
+        return escapeRadius;
+    }
+
+    /**
+     * Getter for the radius the crystal grows to before it is done. The kill sphere must fit in the
+     * bath, so this is half the escape radius, and the last ions are killed at twice the launch radius.
+     * @return The radius.
+     */
+    public int getStartRadius() {
+        return startRadius;
+    }
+
+    /**
+     * Getter for the current radius of the crystal, including a small margin.
+     * @return The radius.
+     */
+    public int getCurrentRadius() {
+        return currentRadius;
+    }
+
+    /**
+     * Getter for the number of crystallized voxels, including the one in the middle.
+     * @return The number of particles.
+     */
+    public long getParticleCount() {
+        return particleCount;
+    }
+
+    /**
+     * Getter for the number of ions dropped since the last reset.
+     * @return The number of ions.
+     */
+    public long getIonCount() {
+        return ionCount;
+    }
+
+    /**
+     * Getter for the number of moves of all ions since the last reset. A jump counts as one move.
+     * @return The number of moves.
+     */
+    public long getWalkSteps() {
+        return walkSteps;
+    }
+
+    /**
+     * Getter for the lattice that the crystal is stored in, with the middle of the bath at
+     * getEscapeCircleRadius() + 4 along every axis.
+     * @return The lattice.
+     */
+    public VoxelLattice getLattice() {
+        return lattice;
+    }
+
+    /**
+     * Sets a listener that gets the crystallized voxels in batches, projected along the z-axis to
+     * x,y in bath-coordinates, like the listener of a CrystalModel. A batch is delivered when it is
+     * full and at the end of runSomeSteps().
+     * @param listener The listener, or null to remove it.
+     * @param batchSize The largest number of voxels in a batch.
+     */
+    public void setBatchUpdateListener(BatchUpdateListener listener, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive!");
+        }
+        flushUpdates();
+        batchUpdateListener = listener;
+        batchXs = new int[batchSize];
+        batchYs = new int[batchSize];
+        batchOrder = new long[batchSize];
+        batchCount = 0;
+    }
+
+    /**
+     * Delivers the voxels that crystallized since the last batch to the listener.
+     */
+    public void flushUpdates() {
+        if (batchUpdateListener != null && batchCount > 0)
+            batchUpdateListener.update(batchXs, batchYs, batchOrder, batchCount);
+        batchCount = 0;
+    }
+
+    /**
+     * Drops ions until one crystallizes.
+     * @return "false" when the crystal is done (i.e. the last voxel crystallized on the start
+     * sphere) and "true" if more ions can crystallize.
+     */
+    public boolean crystallizeOneIon() {
+        int x, y, z;
+        long steps = 0;
+
+        drop:
+        while (true) {
+            if (seeded)
+                random.setSeed(WalkRandom.ionSeed(seed, ionCount));
+            ionCount++;
+            directionBits = 0;
+
+            int launch = currentRadius;
+            long kill = Math.min(escapeRadius, (long) KILL_FACTOR * launch);
+            long jumpStart = (long) (currentRadius + MIN_JUMP_RADIUS + 2) * (currentRadius + MIN_JUMP_RADIUS + 2);
+            randomPointOnSphere(point);
+            x = offset + (int) Math.round(launch * point[0]);
+            y = offset + (int) Math.round(launch * point[1]);
+            z = offset + (int) Math.round(launch * point[2]);
+
+            while (!lattice.anyNeighbours(x, y, z)) {
+                steps++;
+
+                long dx = x - offset, dy = y - offset, dz = z - offset;
+                long squared = dx * dx + dy * dy + dz * dz;
+                if (squared > jumpStart) {
+                    double rad = Math.sqrt(squared);
+                    if (rad >= kill)
+                        continue drop;
+
+                    int jumpRadius = (int) Math.min(rad - currentRadius - 2, kill - Math.ceil(rad));
+                    if (jumpRadius >= MIN_JUMP_RADIUS) {
+                        randomPointOnSphere(point);
+                        x += (int) Math.round(jumpRadius * point[0]);
+                        y += (int) Math.round(jumpRadius * point[1]);
+                        z += (int) Math.round(jumpRadius * point[2]);
+                        continue;
+                    }
+                }
+
+                int direction = nextDirection();
+                x += X_MOVE[direction];
+                y += Y_MOVE[direction];
+                z += Z_MOVE[direction];
+            }
+            break;
+        }
+
+        walkSteps += steps;
+        return attach(x, y, z);
+    }
+
+    /**
+     * A function running the method crystallizeOneIon() "steps" times, and then delivering the
+     * crystallized voxels to the listener.
+     * @param steps The number of voxels to crystallize.
+     * @return "false" if the crystal is done, otherwise "true".
+     */
+    public boolean runSomeSteps(int steps) {
+        boolean goOn = true;
+        for (int i = 0; i < steps && goOn; i++) {
+            goOn = crystallizeOneIon();
+        }
+        flushUpdates();
+        return goOn;
+    }
+
+    /**
+     * Crystallizes a voxel, grows the current radius and hands the voxel to the listener.
+     * @param x The x-coordinate of the voxel in the lattice.
+     * @param y The y-coordinate of the voxel in the lattice.
+     * @param z The z-coordinate of the voxel in the lattice.
+     * @return "false" if the voxel is on or outside the start sphere, i.e. the crystal is done.
+     */
+    private boolean attach(int x, int y, int z) {
+        lattice.set(x, y, z);
+        particleCount++;
+
+        long dx = x - offset, dy = y - offset, dz = z - offset;
+        double rad = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        currentRadius = Math.max(currentRadius, (int) rad + MARGIN);
+
+        if (batchUpdateListener != null) {
+            batchXs[batchCount] = (int) dx;
+            batchYs[batchCount] = (int) dy;
+            batchOrder[batchCount] = particleCount;
+            if (++batchCount == batchXs.length)
+                flushUpdates();
+        }
+        return rad < startRadius;
+    }
+
+    /**
+     * Returns one of the six directions, using three random bits at a time.
+     * @return The direction, 0-5.
+     */
+    private int nextDirection() {
+        while (true) {
+            if (directionBits < 3) {
+                directions = random.nextLong();
+                directionBits = 63;
+            }
+            int direction = (int) directions & 7;
+            directions >>>= 3;
+            directionBits -= 3;
+            if (direction < 6)
+                return direction;
+        }
+    }
+
+    /**
+     * Picks a uniformly random point on the unit sphere (Marsaglia's method, without trigonometry).
+     * @param point The array to store the point in.
+     */
+    private void randomPointOnSphere(double[] point) {
+        double u, v, s;
+        do {
+            u = 2 * random.nextDouble() - 1;
+            v = 2 * random.nextDouble() - 1;
+            s = u * u + v * v;
+        } while (s >= 1);
+
+        double scale = 2 * Math.sqrt(1 - s);
+        point[0] = u * scale;
+        point[1] = v * scale;
+        point[2] = 1 - 2 * s;
+    }
+
+    /**
+     * Grows a crystal in a window, showing its projection, or headless, writing its projection
+     * and middle slice as images.
+     * @param args The size of the bath (default 256) and optionally the name of the projection
+     *             image, e.g. projection.png, which also writes the slice to slice-(name).
+     * @throws Exception If the window cannot be created or an image cannot be written.
+     */
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        String out = args.length > 1 ? args[1] : null;
+        VoxelModel model = new VoxelModel(size);
+        int escRad = model.getEscapeCircleRadius();
+
+        if (out == null) {
+            CrystalWindow window = new CrystalWindow("Voxel crystal, projected along z", size, escRad, 256);
+            model.setBatchUpdateListener(window, window.getBatchSize());
+        }
+
+        long start = System.nanoTime();
+        while (model.runSomeSteps(100)) {
+            // grow until the crystal reaches the start sphere
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d voxels in %.2f s, %.1f Mmoves/s, %d kB of chunks, radius %d%n", model.getParticleCount(),
+                seconds, model.getWalkSteps() / seconds / 1e6, model.getLattice().getChunkCount() * 32,
+                model.getCurrentRadius());
+
+        if (out != null) {
+            writePng(model.getLattice().projection(), out);
+            File file = new File(out);
+            writePng(model.getLattice().slice(escRad + 4), new File(file.getParentFile(), "slice-" + file.getName()).getPath());
+        }
+    }
+
+    /**
+     * Writes a 2D lattice as a PNG image.
+     * @param lattice The lattice.
+     * @param name The name of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    private static void writePng(Lattice lattice, String name) throws IOException {
+        try (OutputStream png = new BufferedOutputStream(new FileOutputStream(name), 1 << 16)) {
+            new CrystalExporter(lattice).writePng(png);
+        }
+    }
+}
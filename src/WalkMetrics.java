@@ -0,0 +1,172 @@
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the walk of the ions of a CrystalModel, published as an MXBean so that a growth can
+ * be watched in JConsole or VisualVM while it runs. The counters are LongAdders, which are striped
+ * per thread, so the workers of a growth engine never contend for them.
+ * <p>
+ * The model only counts when a WalkMetrics has been set with {@link CrystalModel#setMetrics(WalkMetrics)}.
+ * The counting happens once per ion, never per step, and without metrics it costs a single null check
+ * per ion, so the metrics can stay on in long growths.
+ */
+public class WalkMetrics implements WalkMetricsMXBean {
+
+    private final CrystalModel crystalModel;
+
+    private final LongAdder launched = new LongAdder();
+    private final LongAdder stuck = new LongAdder();
+    private final LongAdder escaped = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder walkSteps = new LongAdder();
+    private final LongAdder listenerTime = new LongAdder();
+    private final LongAdder[] stepsHistogram = new LongAdder[65];
+
+    // the last call of getSticksPerSecond()
+    private long lastStuck = 0;
+    private long lastTime = System.nanoTime();
+
+    /**
+     * Creates the counters for a model. They are not counted until they are set on the model.
+     * @param crystalModel The model, its current radius is read directly.
+     */
+    public WalkMetrics(CrystalModel crystalModel) {
+        this.crystalModel = crystalModel;
+        for (int i = 0; i < stepsHistogram.length; i++) {
+            stepsHistogram[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server under "crystal:type=WalkMetrics,name=" + name,
+     * replacing metrics registered earlier under the same name.
+     * @param name The name to tell several models apart.
+     * @return The name the metrics were registered under.
+     * @throws JMException If the metrics cannot be registered, e.g. when the name is not valid.
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("crystal:type=WalkMetrics,name=" + ObjectName.quote(name));
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (InstanceAlreadyExistsException e) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        }
+        return objectName;
+    }
+
+    /**
+     * Counts an ion whose walk is over.
+     * @param steps The number of moves of the walk.
+     * @param outcome How the walk ended, COMPLETE is counted as stuck.
+     */
+    void recordIon(long steps, CrystalModel.Outcome outcome) {
+        launched.increment();
+        walkSteps.add(steps);
+        stepsHistogram[64 - Long.numberOfLeadingZeros(steps)].increment();
+
+        switch (outcome) {
+            case STUCK:
+            case COMPLETE:
+                stuck.increment();
+                break;
+            case ESCAPED:
+                escaped.increment();
+                break;
+            default:
+                lost.increment();
+                break;
+        }
+    }
+
+    /**
+     * Counts the time spent in a call of the update listeners.
+     * @param nanos The time in nanoseconds.
+     */
+    void recordListenerTime(long nanos) {
+        listenerTime.add(nanos);
+    }
+
+    @Override
+    public long getIonsLaunched() {
+        return launched.sum();
+    }
+
+    @Override
+    public long getIonsStuck() {
+        return stuck.sum();
+    }
+
+    @Override
+    public long getIonsEscaped() {
+        return escaped.sum();
+    }
+
+    @Override
+    public long getIonsLost() {
+        return lost.sum();
+    }
+
+    @Override
+    public long getWalkSteps() {
+        return walkSteps.sum();
+    }
+
+    @Override
+    public long[] getStepsHistogram() {
+        int last = stepsHistogram.length - 1;
+        while (last > 0 && stepsHistogram[last].sum() == 0) {
+            last--;
+        }
+        long[] histogram = new long[last + 1];
+        for (int i = 0; i <= last; i++) {
+            histogram[i] = stepsHistogram[i].sum();
+        }
+        return histogram;
+    }
+
+    @Override
+    public synchronized double getSticksPerSecond() {
+        long now = System.nanoTime();
+        long sticks = stuck.sum();
+        double rate = (sticks - lastStuck) / ((now - lastTime) / 1e9);
+        lastStuck = sticks;
+        lastTime = now;
+        return rate;
+    }
+
+    @Override
+    public int getCurrentRadius() {
+        return crystalModel.getCurrentRadius();
+    }
+
+    @Override
+    public long getListenerTimeNanos() {
+        return listenerTime.sum();
+    }
+
+    @Override
+    public synchronized void reset() {
+        launched.reset();
+        stuck.reset();
+        escaped.reset();
+        lost.reset();
+        walkSteps.reset();
+        listenerTime.reset();
+        for (LongAdder bucket : stepsHistogram) {
+            bucket.reset();
+        }
+        lastStuck = 0;
+        lastTime = System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("launched=%d, stuck=%d, escaped=%d, lost=%d, walkSteps=%d, listenerTimeMs=%.1f",
+                getIonsLaunched(), getIonsStuck(), getIonsEscaped(), getIonsLost(), getWalkSteps(),
+                getListenerTimeNanos() / 1e6);
+    }
+}
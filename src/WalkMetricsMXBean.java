@@ -0,0 +1,55 @@
+/**
+ * The management interface of {@link WalkMetrics}, as it is seen in JConsole or VisualVM.
+ */
+public interface WalkMetricsMXBean {
+
+    /**
+     * @return The number of ions dropped on the start circle.
+     */
+    long getIonsLaunched();
+
+    /**
+     * @return The number of ions that crystallized.
+     */
+    long getIonsStuck();
+
+    /**
+     * @return The number of ions that reached the escape circle and were discarded.
+     */
+    long getIonsEscaped();
+
+    /**
+     * @return The number of ions lost to another thread that crystallized the same cell first.
+     */
+    long getIonsLost();
+
+    /**
+     * @return The number of moves of all walks.
+     */
+    long getWalkSteps();
+
+    /**
+     * @return The histogram of moves per ion, element k counts the walks of 2^(k-1) up to 2^k - 1 moves.
+     */
+    long[] getStepsHistogram();
+
+    /**
+     * @return The number of ions that crystallized per second since the previous call.
+     */
+    double getSticksPerSecond();
+
+    /**
+     * @return The current radius of the crystal.
+     */
+    int getCurrentRadius();
+
+    /**
+     * @return The time in nanoseconds spent in the update listeners of the model.
+     */
+    long getListenerTimeNanos();
+
+    /**
+     * Sets all counters to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,137 @@
+/**
+ * A seedable random generator for the walk of an ion. Subclasses only supply 64 random bits at
+ * a time; this class hands out the step directions two bits at a time, so one 64-bit draw is
+ * enough for 32 steps and the walk loop neither allocates nor synchronizes anything.
+ * <p>
+ * A WalkRandom is not thread-safe. Every thread should use a generator of its own, made with
+ * {@link WalkRandom#split()}.
+ */
+public abstract class WalkRandom {
+
+    private long directions; // buffered random bits for nextDirection()
+    private int remaining = 0; // number of unused directions in the buffer
+
+    /**
+     * Returns the next 64 random bits.
+     * @return A random long value.
+     */
+    public abstract long nextLong();
+
+    /**
+     * Creates a new generator whose sequence is independent of this one, and advances this one.
+     * @return A new generator.
+     */
+    public abstract WalkRandom split();
+
+    /**
+     * Resets the state of the generator from a seed.
+     * @param seed The seed.
+     */
+    protected abstract void seed(long seed);
+
+    /**
+     * Returns the state of the subclass, see {@link WalkRandom#getState()}.
+     * @return The state as a new array.
+     */
+    protected abstract long[] state();
+
+    /**
+     * Restores the state of the subclass from the values returned by state().
+     * @param state The array holding the state.
+     * @param offset The index of the first value of the state in the array.
+     */
+    protected abstract void restore(long[] state, int offset);
+
+    /**
+     * Returns the complete state of the generator, including the buffered directions, so that
+     * it can be stored with a checkpoint and continued later with {@link WalkRandom#setState(long[])}.
+     * @return The state as a new array.
+     */
+    public final long[] getState() {
+        long[] own = state();
+        long[] state = new long[own.length + 2];
+        state[0] = directions;
+        state[1] = remaining;
+        System.arraycopy(own, 0, state, 2, own.length);
+        return state;
+    }
+
+    /**
+     * Continues the sequence of a generator of the same kind from a state returned by getState().
+     * @param state The state.
+     */
+    public final void setState(long[] state) {
+        if (state.length != state().length + 2) {
+            throw new IllegalArgumentException("The state belongs to another kind of generator!");
+        }
+        directions = state[0];
+        remaining = (int) state[1];
+        restore(state, 2);
+    }
+
+    /**
+     * Resets the generator so that it produces the same sequence as a new generator created
+     * with the same seed, including the buffered directions.
+     * @param seed The seed.
+     */
+    public final void setSeed(long seed) {
+        remaining = 0;
+        seed(seed);
+    }
+
+    /**
+     * Returns a random direction for a single step.
+     * @return An int value from 0 to 3.
+     */
+    public final int nextDirection() {
+        if (remaining == 0) {
+            directions = nextLong();
+            remaining = 32;
+        }
+        int direction = (int) directions & 3;
+        directions >>>= 2;
+        remaining--;
+        return direction;
+    }
+
+    /**
+     * Returns a random int value between 0 (inclusive) and bound (exclusive). The value is made
+     * by multiplying the upper 32 bits of a draw with bound, so the bias is below bound / 2^32.
+     * @param bound The upper bound, must be positive.
+     * @return A random int value.
+     */
+    public final int nextInt(int bound) {
+        return (int) (((nextLong() >>> 32) * bound) >>> 32);
+    }
+
+    /**
+     * Returns a random double value between 0 (inclusive) and 1 (exclusive).
+     * @return A random double value.
+     */
+    public final double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Derives the seed for the random generator of one ion from the seed of a model, so that the
+     * walk of an ion only depends on the seed and the index of the ion.
+     * @param seed The seed of the model.
+     * @param index The index of the ion, counted from the last reset.
+     * @return The seed for the ion.
+     */
+    static long ionSeed(long seed, long index) {
+        return mix64(seed + (index + 1) * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * The SplitMix64 finalizer, a bijection that mixes the bits of a long value thoroughly.
+     * It is used to turn seeds and counters into random bits.
+     * @param z The value to mix.
+     * @return The mixed value.
+     */
+    static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * A WalkRandom using the xoroshiro128++ algorithm by Blackman and Vigna. It has a much longer
+ * period than SplitMixRandom (2^128 - 1) for growths that use very many random numbers on a
+ * single generator. The state is filled from the seed with SplitMix64, as the authors recommend.
+ */
+public class XoroshiroRandom extends WalkRandom {
+
+    private long s0;
+    private long s1;
+
+    /**
+     * Creates a generator from a seed.
+     * @param seed The seed.
+     */
+    public XoroshiroRandom(long seed) {
+        setSeed(seed);
+    }
+
+    @Override
+    public long nextLong() {
+        long a = s0;
+        long b = s1;
+        long result = Long.rotateLeft(a + b, 17) + a;
+
+        b ^= a;
+        s0 = Long.rotateLeft(a, 49) ^ b ^ (b << 21);
+        s1 = Long.rotateLeft(b, 28);
+        return result;
+    }
+
+    @Override
+    public WalkRandom split() {
+        return new XoroshiroRandom(nextLong());
+    }
+
+    @Override
+    protected void seed(long seed) {
+        s0 = mix64(seed + 0x9E3779B97F4A7C15L);
+        s1 = mix64(seed + 2 * 0x9E3779B97F4A7C15L);
+    }
+
+    @Override
+    protected long[] state() {
+        return new long[] {s0, s1};
+    }
+
+    @Override
+    protected void restore(long[] state, int offset) {
+        s0 = state[offset];
+        s1 = state[offset + 1];
+    }
+}